@@ -3,6 +3,7 @@ package com.cs555.a1;
 public class Chunk {
     public String fileName = "";
     public int version = 0;
-    public boolean isNew = true;
     public int sequence;
+    public volatile long writtenAt = 0;  // System.nanoTime() of the last write to it, 0 if none since startup
+    public volatile long verifiedAt = 0;  // System.nanoTime() of the last clean checksum pass over the whole chunk
 }
\ No newline at end of file
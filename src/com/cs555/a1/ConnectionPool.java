@@ -0,0 +1,377 @@
+package com.cs555.a1;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections to other nodes, shared per host and port. Requests are framed (see Protocol) and tagged with
+ * a request id, so any number of threads can have requests in flight on the same connection; a reader thread per
+ * connection matches responses to callers as they arrive, in whatever order the server answers them. A connection
+ * that fails hands the failure to every caller waiting on it and is dropped. A connection idle for
+ * Helper.connectionProbeMillis is pinged, so one whose peer vanished without closing it is dropped before a request
+ * finds out by timing out; idle ones are closed after Helper.connectionIdleMillis.
+ */
+public class ConnectionPool {
+    // the server answered BUSY, either for one request or for the whole connection
+    public static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ServerBusyException(String endpoint) {
+            super("Server busy: " + endpoint);
+        }
+    }
+
+    // the request was never written out whole, so the server can't have acted on it
+    private static class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(String endpoint, Throwable cause) {
+            super("Could not send to " + endpoint, cause);
+        }
+    }
+
+    public interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static class Reply {
+        final byte status;
+        final byte[] payload;
+
+        Reply(byte status, byte[] payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+    }
+
+    private class Connection {
+        final String endpoint;
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final ConcurrentHashMap<Integer, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+        final AtomicInteger nextRequestId = new AtomicInteger(1);
+        volatile long lastUsed = System.nanoTime();
+        volatile long lastProbed = System.nanoTime();
+        int borrowers = 0;  // guarded by connections: callers that picked this connection and haven't sent yet
+        volatile boolean answered = false;  // has carried at least one response, so it worked at some point
+        volatile long lastAnswered = System.nanoTime();
+        volatile boolean dead = false;
+
+        Connection(String endpoint, String host, int port) throws IOException {
+            this.endpoint = endpoint;
+            this.socket = new Socket();
+            try {
+                this.socket.connect(new InetSocketAddress(host, port), Helper.connectTimeoutMillis);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            this.socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            Thread reader = new Thread(this::readResponses, "connection-" + endpoint);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // writes the request of a caller that borrowed this connection and returns its response to come; a
+        // connection failure fails it like every other
+        CompletableFuture<Reply> send(Protocol.FrameBuilder request) {
+            return send(request, Helper.requestTimeoutMillis, true);
+        }
+
+        // pings the connection if it has sat idle since the last probe; if neither that nor anything else is answered
+        // in time, it is dropped. The probe doesn't count as use, so a connection nobody needs is still evicted
+        void probe() {
+            long now = System.nanoTime();
+            long after = now - TimeUnit.MILLISECONDS.toNanos(Helper.connectionProbeMillis);
+            if (!pending.isEmpty() || lastUsed - after > 0 || lastProbed - after > 0)
+                return;
+            lastProbed = now;
+            send(new Protocol.FrameBuilder(0, Protocol.PING, Protocol.OK), Helper.connectTimeoutMillis, false)
+                    .whenComplete((reply, e) -> {
+                        if (e != null && lastAnswered - now < 0) {
+                            System.out.println("Idle connection to " + endpoint + " failed its probe");
+                            fail(asIOException(endpoint, e));
+                        }
+                    });
+        }
+
+        private CompletableFuture<Reply> send(Protocol.FrameBuilder request, long timeoutMillis, boolean borrowed) {
+            int requestId = nextRequestId.getAndUpdate(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+            request.setRequestId(requestId);
+            CompletableFuture<Reply> reply = new CompletableFuture<>();
+            pending.put(requestId, reply);
+            if (borrowed) {
+                lastUsed = System.nanoTime();
+                synchronized (connections) {
+                    borrowers--;  // pending now keeps it from being evicted
+                }
+            }
+            if (dead)  // failed before our request was registered
+                reply.completeExceptionally(new NotSentException(endpoint, null));
+            try {
+                ByteBuffer frame = request.toBuffer();
+                synchronized (out) {
+                    out.write(frame.array(), 0, frame.limit());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                reply.completeExceptionally(new NotSentException(endpoint, e));  // before fail hands everyone e
+                fail(e);
+            }
+            return reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((r, e) -> {
+                pending.remove(requestId);
+                if (borrowed)
+                    lastUsed = System.nanoTime();
+            });
+        }
+
+        Reply exchange(Protocol.FrameBuilder request) throws IOException {
+            try {
+                return send(request).get();
+            } catch (ExecutionException e) {
+                throw asIOException(endpoint, e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting on " + endpoint);
+            }
+        }
+
+        private void readResponses() {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    int requestId = in.readInt();
+                    in.readByte();  // opcode
+                    byte status = in.readByte();
+                    byte[] payload = new byte[length - (Protocol.HEADER_BYTES - 4)];
+                    in.readFully(payload);
+                    if (requestId == 0 && status == Protocol.BUSY)
+                        throw new ServerBusyException(endpoint);
+                    answered = true;
+                    lastAnswered = System.nanoTime();
+                    CompletableFuture<Reply> reply = pending.remove(requestId);
+                    if (reply != null)
+                        reply.complete(new Reply(status, payload));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(IOException e) {
+            if (dead)
+                return;
+            dead = true;
+            remove(this);
+            close();
+            for (CompletableFuture<Reply> reply : pending.values())
+                reply.completeExceptionally(e);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final HashMap<String, ArrayList<Connection>> connections = new HashMap<>();
+    private final AtomicLong busy = Metrics.counter("connections.busyResponses");
+
+    ConnectionPool() {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends one request to host:port and waits for its response, which is handed to response (null if the caller
+     * only needs to know it succeeded). A request lost with a connection that was already open is retried once on a
+     * new connection, if it never got out whole or the opcode is idempotent (see Protocol.isIdempotent): otherwise
+     * the server may have acted on it already and the failure is the caller's to handle. A BUSY answer is retried
+     * with exponential backoff, up to Helper.busyRetries. An ERROR answer is thrown as an IOException carrying the
+     * server's message.
+     */
+    public <T> T call(String host, int port, byte opcode, Request request, Response<T> response) throws IOException {
+        String endpoint = host + ":" + port;
+        Protocol.FrameBuilder frame = new Protocol.FrameBuilder(0, opcode, Protocol.OK);
+        request.write(frame.data);
+        boolean retriedStale = false;
+        for (int busyRetries = 0; ; ) {
+            Connection connection = borrow(endpoint, host, port);
+            boolean reused = connection.answered;
+            Reply reply;
+            try {
+                reply = connection.exchange(frame);
+            } catch (ServerBusyException e) {
+                reply = new Reply(Protocol.BUSY, new byte[0]);
+            } catch (IOException e) {
+                if (!reused || retriedStale || e instanceof InterruptedIOException
+                        || !(e instanceof NotSentException || Protocol.isIdempotent(opcode)))
+                    throw e;
+                retriedStale = true;
+                continue;
+            }
+            if (reply.status == Protocol.BUSY) {
+                if (busyRetries >= Helper.busyRetries)
+                    throw new ServerBusyException(endpoint);
+                busy.incrementAndGet();
+                try {
+                    Thread.sleep((long) Helper.busyBackoffMillis << Integer.min(busyRetries, 10));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted backing off from " + endpoint);
+                }
+                busyRetries++;
+                continue;
+            }
+            return decode(endpoint, reply, response);
+        }
+    }
+
+    /**
+     * Like call, but returns at once so a caller can have many requests outstanding. BUSY answers are retried after
+     * the same backoff, without holding a thread. A request that never got out whole is retried once; one lost with
+     * its connection after that fails rather than being retried.
+     */
+    public <T> CompletableFuture<T> callAsync(String host, int port, byte opcode, Request request,
+                                              Response<T> response) {
+        Protocol.FrameBuilder frame = new Protocol.FrameBuilder(0, opcode, Protocol.OK);
+        try {
+            request.write(frame.data);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return attempt(host + ":" + port, host, port, frame, response, 0, false);
+    }
+
+    private <T> CompletableFuture<T> attempt(String endpoint, String host, int port, Protocol.FrameBuilder frame,
+                                             Response<T> response, int busyRetries, boolean retriedUnsent) {
+        Connection connection;
+        try {
+            connection = borrow(endpoint, host, port);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.send(frame).thenCompose(reply -> {
+            if (reply.status == Protocol.BUSY && busyRetries < Helper.busyRetries) {
+                busy.incrementAndGet();
+                Executor later = CompletableFuture.delayedExecutor(
+                        (long) Helper.busyBackoffMillis << Integer.min(busyRetries, 10), TimeUnit.MILLISECONDS);
+                return CompletableFuture.supplyAsync(() -> null, later)
+                        .thenCompose(ignored -> attempt(endpoint, host, port, frame, response, busyRetries + 1,
+                                retriedUnsent));
+            }
+            try {
+                if (reply.status == Protocol.BUSY)
+                    throw new ServerBusyException(endpoint);
+                return CompletableFuture.completedFuture(decode(endpoint, reply, response));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).exceptionallyCompose(e -> {
+            IOException failure = asIOException(endpoint, e);
+            if (failure instanceof NotSentException && !retriedUnsent)  // e.g. the connection was closed under it
+                return attempt(endpoint, host, port, frame, response, busyRetries, true);
+            return CompletableFuture.failedFuture(failure);
+        });
+    }
+
+    private static <T> T decode(String endpoint, Reply reply, Response<T> response) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply.payload));
+        if (reply.status == Protocol.ERROR)
+            throw new IOException(endpoint + " failed request: " + in.readUTF());
+        return response == null ? null : response.read(in);
+    }
+
+    // unwraps the failure of a request future into what a caller of call expects to catch
+    static IOException asIOException(String endpoint, Throwable e) {
+        while (e instanceof CompletionException || e instanceof ExecutionException)
+            e = e.getCause();
+        if (e instanceof IOException)
+            return (IOException) e;
+        if (e instanceof TimeoutException)
+            return new IOException("Timed out waiting on " + endpoint);
+        return new IOException(e);
+    }
+
+    // the least loaded live connection to the endpoint, opening another while all are busier than pipelineDepth;
+    // the caller must send on it, which is what lets the evictor close it again
+    private Connection borrow(String endpoint, String host, int port) throws IOException {
+        synchronized (connections) {
+            ArrayList<Connection> open = connections.computeIfAbsent(endpoint, k -> new ArrayList<>());
+            Connection best = null;
+            for (Connection connection : open) {
+                if (!connection.dead && (best == null || load(connection) < load(best)))
+                    best = connection;
+            }
+            if (best != null && (load(best) < Helper.pipelineDepth || open.size() >= Helper.connectionsPerEndpoint)) {
+                best.borrowers++;
+                return best;
+            }
+        }
+        Connection connection = new Connection(endpoint, host, port);
+        synchronized (connections) {
+            connection.borrowers++;
+            connections.computeIfAbsent(endpoint, k -> new ArrayList<>()).add(connection);
+        }
+        return connection;
+    }
+
+    // only while holding connections
+    private static int load(Connection connection) {
+        return connection.pending.size() + connection.borrowers;
+    }
+
+    private void remove(Connection connection) {
+        synchronized (connections) {
+            ArrayList<Connection> open = connections.get(connection.endpoint);
+            if (open != null)
+                open.remove(connection);
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Helper.connectionIdleMillis);
+        ArrayList<Connection> kept = new ArrayList<>();
+        synchronized (connections) {
+            Iterator<Map.Entry<String, ArrayList<Connection>>> endpoints = connections.entrySet().iterator();
+            while (endpoints.hasNext()) {
+                ArrayList<Connection> open = endpoints.next().getValue();
+                Iterator<Connection> iterator = open.iterator();
+                while (iterator.hasNext()) {
+                    Connection connection = iterator.next();
+                    if (load(connection) == 0 && connection.lastUsed - cutoff < 0) {
+                        iterator.remove();
+                        connection.dead = true;
+                        connection.close();
+                    } else {
+                        kept.add(connection);
+                    }
+                }
+                if (open.isEmpty())
+                    endpoints.remove();
+            }
+        }
+        for (Connection connection : kept)  // outside the lock, since a probe writes to the socket
+            connection.probe();
+    }
+}
@@ -0,0 +1,127 @@
+package com.cs555.a1;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What a chunk server tells the controller in a HEARTBEAT. A DELTA carries the chunks added, re-versioned or removed
+ * since the previous report; a FULL carries the whole inventory. To check for drift without sending everything, a
+ * DIGEST adds the server's InventoryDigest to a delta, and the controller answers with the buckets it disagrees on,
+ * which the next report, a BUCKETS, lists in full. Reports are numbered so the controller can tell when one went
+ * missing. The controller's answer is the kind of report it wants next, and for BUCKETS which ones.
+ *
+ * Shard names share their file's name, so entries are grouped by it and each carries only the numbers that differ:
+ *
+ *   byte kind, long sequence, int numStored, int numFiles,
+ *   then per file: UTF name, int numEntries, then per entry: int chunk, byte shard, int version (REMOVED if gone),
+ *   then for DIGEST: BUCKETS longs; for BUCKETS: int numBuckets, that many ints
+ */
+public class HeartbeatReport {
+    public static final int REMOVED = -1;
+
+    // report kinds, and what the controller asks for next
+    public static final byte DELTA = 0;
+    public static final byte FULL = 1;
+    public static final byte DIGEST = 2;
+    public static final byte BUCKETS = 3;
+
+    public final byte kind;
+    public final long sequence;
+    public final int numStored;
+    public final Map<String, Integer> versions;  // shard name to version
+    public final long[] digests;  // DIGEST only
+    public final int[] buckets;  // BUCKETS only: the buckets whose every name is in versions
+
+    public HeartbeatReport(byte kind, long sequence, int numStored, Map<String, Integer> versions, long[] digests,
+                           int[] buckets) {
+        this.kind = kind;
+        this.sequence = sequence;
+        this.numStored = numStored;
+        this.versions = versions;
+        this.digests = digests;
+        this.buckets = buckets;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        LinkedHashMap<String, ArrayList<Map.Entry<String, Integer>>> byFile = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : versions.entrySet())
+            byFile.computeIfAbsent(fileOf(entry.getKey()), file -> new ArrayList<>()).add(entry);
+        out.writeByte(kind);
+        out.writeLong(sequence);
+        out.writeInt(numStored);
+        out.writeInt(byFile.size());
+        for (Map.Entry<String, ArrayList<Map.Entry<String, Integer>>> file : byFile.entrySet()) {
+            out.writeUTF(file.getKey());
+            out.writeInt(file.getValue().size());
+            for (Map.Entry<String, Integer> entry : file.getValue()) {
+                String[] splits = entry.getKey().split("\\.");
+                out.writeInt(Integer.parseInt(splits[splits.length - 2]));
+                out.writeByte(Integer.parseInt(splits[splits.length - 1]));
+                out.writeInt(entry.getValue());
+            }
+        }
+        if (kind == DIGEST) {
+            for (long digest : digests)
+                out.writeLong(digest);
+        } else if (kind == BUCKETS) {
+            writeBuckets(out, buckets);
+        }
+    }
+
+    public static HeartbeatReport read(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        long sequence = in.readLong();
+        int numStored = in.readInt();
+        int numFiles = in.readInt();
+        HashMap<String, Integer> versions = new HashMap<>();
+        for (int i = 0; i < numFiles; i++) {
+            String file = in.readUTF();
+            int numEntries = in.readInt();
+            for (int j = 0; j < numEntries; j++) {
+                int chunk = in.readInt();
+                int shard = in.readByte();
+                versions.put(file + "." + chunk + "." + shard, in.readInt());
+            }
+        }
+        long[] digests = null;
+        int[] buckets = null;
+        if (kind == DIGEST) {
+            digests = new long[InventoryDigest.BUCKETS];
+            for (int i = 0; i < digests.length; i++)
+                digests[i] = in.readLong();
+        } else if (kind == BUCKETS) {
+            buckets = readBuckets(in);
+        }
+        return new HeartbeatReport(kind, sequence, numStored, versions, digests, buckets);
+    }
+
+    public static void writeBuckets(DataOutputStream out, int[] buckets) throws IOException {
+        out.writeInt(buckets.length);
+        for (int bucket : buckets)
+            out.writeInt(bucket);
+    }
+
+    public static int[] readBuckets(DataInputStream in) throws IOException {
+        int numBuckets = in.readInt();
+        if (numBuckets < 0 || numBuckets > InventoryDigest.BUCKETS)
+            throw new IOException("Bad bucket count: " + numBuckets);
+        int[] buckets = new int[numBuckets];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = in.readInt();
+            if (buckets[i] < 0 || buckets[i] >= InventoryDigest.BUCKETS)
+                throw new IOException("No such bucket: " + buckets[i]);
+        }
+        return buckets;
+    }
+
+    // the shard's file name: everything before the chunk and shard numbers
+    private static String fileOf(String shardName) {
+        int shardDot = shardName.lastIndexOf('.');
+        return shardName.substring(0, shardName.lastIndexOf('.', shardDot - 1));
+    }
+}
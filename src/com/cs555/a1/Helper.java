@@ -3,13 +3,13 @@ package com.cs555.a1;
 import erasure.ReedSolomon;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Helper {
     public static int BpSlice = 1024*8;
@@ -17,18 +17,57 @@ public class Helper {
     public static int slicesPerChunk = 8;
     public static int BpChunk = BpSlice * slicesPerChunk;
     public static String chunkHome = "/tmp/dwhite54/chunks";
+    public static String storageEngine = "file";  // chunk server layout: file or mapped (two files per shard), segment
+    public static int maxMappedFiles = 8192;  // files the mapped store keeps mapped at once
+    public static boolean syncWrites = false;  // chunk servers ack a write only once it is forced to disk
+    public static int groupCommitMillis = 2;  // how long a durable write may wait for others to share its fsync
+    public static long segmentBytes = 64L * 1024 * 1024;  // segment store rolls to a new file past this size
     public static int space = 10000;
     public static int readLimit = 1000;  // if each chunk is 64KB (64 * 2^10) then this is about 66mB
+    public static int writeWindow = 8;  // chunks read from disk but not yet dispersed, bounds client write memory
+    public static int locationCacheSize = 100000;  // shard locations the client remembers
+    public static int locationCacheTtlSeconds = 60;
+    public static int readAheadWindow = 8;  // chunks the client fetches ahead of the one it is writing out
+    public static int dispersalThreads = 16;  // shard writes the client runs concurrently
+    public static int writeRetries = 1;  // extra placements tried for a shard whose write failed
+    public static int writeQuorum = 9;  // durable shards needed before a chunk counts as written (capped at shard count)
     public static int MajorHeartbeatSeconds = 300;
     public static int MinorHeartbeatSeconds = 30;
     public static boolean debug = false;
     public static boolean useReplication = false;
+    public static boolean hedgedReads = false;  // erasure reads stop at the first DATA_SHARDS valid shards
+    public static int hedgeMillis = 50;  // wait for a data shard before also asking for parity
+    public static int verifyIntervalSeconds = 60;  // replicas checksummed clean this recently are sent unchecked
+    public static long checksumCacheBytes = 16L * 1024 * 1024;  // slice hash tables a chunk server keeps in memory
+    public static long chunkCacheBytes = 64L * 1024 * 1024;  // off-heap memory for verified contents of hot chunks
+    public static long scrubBytesPerSecond = 4L * 1024 * 1024;  // background checksum reads, 0 disables scrubbing
+    public static int scrubIntervalSeconds = 3600;  // pause between scrub passes over all replicas
+    public static int scrubThreads = 2;  // replicas scrubbed at once, all within the one rate
 
     public static final int DATA_SHARDS = 6;
     public static final int PARITY_SHARDS = 3;
     public static final int TOTAL_SHARDS = 9;
     public static final int BYTES_IN_INT = 4;
 
+    public static int connectionIdleMillis = 30000;  // pooled connections unused this long are closed
+    public static int serverIdleMillis = 60000;  // servers drop connections idle this long, keep above the pool's
+    public static int connectionsPerEndpoint = 4;  // connections opened to one remote node at most
+    public static int pipelineDepth = 32;  // requests in flight on a connection before another one is opened
+    public static int requestTimeoutMillis = 120000;  // give up on a response after this long
+    public static int connectTimeoutMillis = 5000;  // give up opening a connection, or on a probe's answer, after this
+    public static int connectionProbeMillis = 5000;  // pooled connections idle this long are pinged to check them
+    public static int maxFrameBytes = 64 * 1024 * 1024;  // larger frames are treated as a corrupt stream
+    public static int maxPendingBytes = 16 * 1024 * 1024;  // unsent response bytes before a server stops reading
+    public static final ConnectionPool connectionPool = new ConnectionPool();
+    public static int busyRetries = 5;  // times a call backs off and retries when a server answers busy
+    public static int busyBackoffMillis = 10;  // first backoff, doubled on each retry
+    public static int maxServerConnections = 4096;  // connections a server holds before answering busy
+    public static int chunkWorkers = 4 * Runtime.getRuntime().availableProcessors();  // chunk server request threads
+    public static int chunkQueueCapacity = 1024;  // requests queued for chunk server workers before pushing back
+    public static int controllerWorkers = 2 * Runtime.getRuntime().availableProcessors();  // controller request threads
+    public static int controllerQueueCapacity = 4096;  // requests queued for controller workers before pushing back
+    public static int statsIntervalSeconds = 0;  // print metrics this often, 0 to disable
+
     public static int _replicationFactor = 3;
     public static int replicationFactor = -1;
 
@@ -61,8 +100,13 @@ public class Helper {
             System.out.println("Not enough shards present");
             return null;
         }
-        ReedSolomon reedSolomon = new ReedSolomon(Helper.DATA_SHARDS, Helper.PARITY_SHARDS);
-        reedSolomon.decodeMissing(shards, shardPresent, 0, shardSize);
+        boolean dataPresent = true;
+        for (int i = 0; i < DATA_SHARDS; i++)
+            dataPresent &= shardPresent[i];
+        if (!dataPresent) {  // with every data shard in hand the parity is not needed
+            ReedSolomon reedSolomon = new ReedSolomon(Helper.DATA_SHARDS, Helper.PARITY_SHARDS);
+            reedSolomon.decodeMissing(shards, shardPresent, 0, shardSize);
+        }
         byte [] allBytes = new byte [shardSize * DATA_SHARDS];
         for (int i = 0; i < DATA_SHARDS; i++) {
             System.arraycopy(shards[i], 0, allBytes, shardSize * i, shardSize);
@@ -95,45 +139,63 @@ public class Helper {
 
     public static boolean writeToChunkServerWithForward(
             byte[] chunk, String chunkFilename, ArrayList<String> chunkServers, int chunkPort) {
+        return writeToChunkServerWithForwardAsync(chunk, chunkFilename, chunkServers, chunkPort).join();
+    }
+
+    // like writeToChunkServerWithForward, without waiting: completes with whether every packet reached the whole chain
+    public static CompletableFuture<Boolean> writeToChunkServerWithForwardAsync(
+            byte[] chunk, String chunkFilename, ArrayList<String> chunkServers, int chunkPort) {
         String chunkServer = chunkServers.get(0);
         chunkServers.remove(0);
-        try (
-                Socket chunkSocket = new Socket(chunkServer, chunkPort);
-                DataInputStream chunkIn = new DataInputStream(chunkSocket.getInputStream());
-                DataOutputStream chunkOut = new DataOutputStream(chunkSocket.getOutputStream())
-        ) {
-            chunkOut.writeUTF("write");
-            System.out.println("writing " + chunkFilename + " to " + chunkServer + " with forward " + chunkServers.toString());
-            chunkOut.writeUTF(chunkFilename);
-            chunkOut.writeInt(chunk.length);
-            chunkOut.writeInt(chunkServers.size());
-            for (String server : chunkServers)
-                chunkOut.writeUTF(server);
-            if (chunk.length > 0)
-                chunkOut.write(chunk);
-            if (!chunkIn.readBoolean()) {
-                System.out.println("Failed writing file to chunk server: " + chunkFilename);
+        System.out.println("writing " + chunkFilename + " to " + chunkServer + " with forward " + chunkServers.toString());
+        // replicas go out as slice-sized packets, all at once: every server in the chain stores and forwards each
+        // packet as it arrives, so the hops overlap instead of each waiting for the whole chunk
+        int packetSize = useReplication ? BpSlice : Integer.max(chunk.length, 1);
+        ArrayList<CompletableFuture<Boolean>> packets = new ArrayList<>();
+        int offset = 0;
+        do {
+            int length = Integer.min(packetSize, chunk.length - offset);
+            packets.add(writePacket(chunkServer, chunkPort, chunkFilename, offset, chunk, offset, length, chunkServers));
+            offset += length;
+        } while (offset < chunk.length);
+        return CompletableFuture.allOf(packets.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> {
+            if (e != null) {
+                System.out.println("Couldn't write " + chunkFilename + " to " + chunkServer + ":" + chunkPort);
+                (e.getCause() == null ? e : e.getCause()).printStackTrace();
                 return false;
             }
-        } catch (IOException e) {
-            System.out.println("Couldn't open socket connection to " + chunkServer + ":" + chunkPort);
-            e.printStackTrace();
-            return false;
-        }
-        return true;
+            for (CompletableFuture<Boolean> packet : packets) {
+                if (!packet.join()) {
+                    System.out.println("Failed writing file to chunk server: " + chunkFilename);
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    // sends data[from, from + length) to be stored at shardOffset in the shard and forwarded on; an empty packet
+    // asks the server to forward the copy it already has
+    public static CompletableFuture<Boolean> writePacket(String chunkServer, int chunkPort, String chunkFilename,
+            int shardOffset, byte[] data, int from, int length, List<String> forwards) {
+        return connectionPool.callAsync(chunkServer, chunkPort, Protocol.WRITE, chunkOut -> {
+            chunkOut.writeUTF(chunkFilename);
+            chunkOut.writeInt(shardOffset);
+            chunkOut.writeInt(forwards.size());
+            for (String server : forwards)
+                chunkOut.writeUTF(server);
+            chunkOut.writeInt(length);
+            chunkOut.write(data, from, length);
+        }, DataInputStream::readBoolean);
     }
 
     public static byte[] readFromChunkServer(
             String chunkFilename, String chunkServer, int chunkPort, int offset, int length) throws IOException {
-        try (
-                Socket chunkSocket = new Socket(chunkServer, chunkPort);
-                DataInputStream chunkIn = new DataInputStream(chunkSocket.getInputStream());
-                DataOutputStream chunkOut = new DataOutputStream(chunkSocket.getOutputStream())
-        ) {
-            chunkOut.writeUTF("read");
+        return connectionPool.call(chunkServer, chunkPort, Protocol.READ, chunkOut -> {
             chunkOut.writeUTF(chunkFilename);
             chunkOut.writeInt(offset);
             chunkOut.writeInt(length);
+        }, chunkIn -> {
             int fileSize = chunkIn.readInt();
             if (fileSize == 0) {
                 return null;
@@ -141,41 +203,64 @@ public class Helper {
             byte[] chunk = new byte[fileSize];
             chunkIn.readFully(chunk);
             return chunk;
-        }
+        });
+    }
+
+    // reads every range in one request; an entry is null where the server couldn't supply a verified copy
+    public static CompletableFuture<byte[][]> readRangesFromChunkServer(
+            String chunkFilename, String chunkServer, int chunkPort, int[] offsets, int[] lengths) {
+        return connectionPool.callAsync(chunkServer, chunkPort, Protocol.READ_RANGES, chunkOut -> {
+            chunkOut.writeUTF(chunkFilename);
+            chunkOut.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                chunkOut.writeInt(offsets[i]);
+                chunkOut.writeInt(lengths[i]);
+            }
+        }, chunkIn -> {
+            byte[][] ranges = new byte[chunkIn.readInt()][];
+            for (int i = 0; i < ranges.length; i++) {
+                int length = chunkIn.readInt();
+                if (length > 0) {
+                    ranges[i] = new byte[length];
+                    chunkIn.readFully(ranges[i]);
+                }
+            }
+            return ranges;
+        });
+    }
+
+    // every server other than the caller holding the shard; a failure report also drops the caller as a holder
+    public static ArrayList<String> replicasFromController(
+            String controllerMachine, int controllerPort, String fileName, boolean isFailure) throws IOException {
+        return connectionPool.call(controllerMachine, controllerPort, Protocol.REPLICAS, controllerOut -> {
+            controllerOut.writeUTF(fileName);
+            controllerOut.writeBoolean(isFailure);
+        }, controllerIn -> {
+            int numServers = controllerIn.readInt();
+            ArrayList<String> servers = new ArrayList<>();
+            for (int i = 0; i < numServers; i++)
+                servers.add(controllerIn.readUTF());
+            return servers;
+        });
     }
 
     public static String readFromController(
             String controllerMachine, int controllerPort, String fileName, boolean isFailure, boolean isChunkServer
     ) throws IOException {
-        try (
-                Socket controllerSocket = new Socket(controllerMachine, controllerPort);
-                DataInputStream controllerIn = new DataInputStream(controllerSocket.getInputStream());
-                DataOutputStream controllerOut = new DataOutputStream(controllerSocket.getOutputStream())
-        ) {
-            controllerOut.writeUTF("read");
+        return connectionPool.call(controllerMachine, controllerPort, Protocol.LOOKUP, controllerOut -> {
             controllerOut.writeUTF(fileName);
             controllerOut.writeBoolean(isFailure);
             controllerOut.writeBoolean(isChunkServer);
-            if (controllerIn.readBoolean()) {
-                return controllerIn.readUTF();
-            } else {
-                return null;
-            }
-        }
+        }, controllerIn -> controllerIn.readBoolean() ? controllerIn.readUTF() : null);
     }
 
     public static void processTaddle(
             String controllerMachine, int controllerPort, String fileName, ArrayList<String> machines) throws IOException {
-        try (
-                Socket controllerSocket = new Socket(controllerMachine, controllerPort);
-                DataInputStream controllerIn = new DataInputStream(controllerSocket.getInputStream());
-                DataOutputStream controllerOut = new DataOutputStream(controllerSocket.getOutputStream())
-        ) {
-            controllerOut.writeUTF("taddle");
+        connectionPool.call(controllerMachine, controllerPort, Protocol.TADDLE, controllerOut -> {
             controllerOut.writeUTF(fileName);
             controllerOut.writeInt(machines.size());
             for (String machine : machines)
                 controllerOut.writeUTF(machine);
-        }
+        }, null);
     }
 }
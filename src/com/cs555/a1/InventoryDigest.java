@@ -0,0 +1,55 @@
+package com.cs555.a1;
+
+import java.util.Arrays;
+
+/**
+ * A summary of a set of shard names that a chunk server and the controller can compare cheaply. Names are spread
+ * over BUCKETS buckets by hash and a bucket's digest is the sum of its names' 64-bit hashes, so it is kept current in
+ * constant time per change, and two sides holding the same names in a bucket always have the same digest for it.
+ */
+public class InventoryDigest {
+    public static final int BUCKETS = 1024;
+
+    private final long[] digests = new long[BUCKETS];
+
+    public static int bucketOf(String name) {
+        return (int) (hashOf(name) >>> 54);  // top 10 bits, BUCKETS = 2^10
+    }
+
+    // 64-bit FNV-1a over the name's chars, with a final mix so similar names spread over the whole range
+    static long hashOf(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public synchronized void add(String name) {
+        digests[bucketOf(name)] += hashOf(name);
+    }
+
+    public synchronized void remove(String name) {
+        digests[bucketOf(name)] -= hashOf(name);
+    }
+
+    public synchronized long[] digests() {
+        return digests.clone();
+    }
+
+    // the buckets whose digest differs from the other side's
+    public int[] differing(long[] reported) {
+        long[] mine = digests();
+        int numDiffering = 0;
+        int[] differing = new int[mine.length];
+        for (int i = 0; i < mine.length; i++) {
+            if (mine[i] != reported[i])
+                differing[numDiffering++] = i;
+        }
+        return Arrays.copyOf(differing, numDiffering);
+    }
+}
@@ -35,6 +35,58 @@ public class Main {
                     case "--replication":
                         Helper.useReplication = true;
                         break;
+                    case "--hedged-reads":
+                        Helper.hedgedReads = true;
+                        break;
+                    case "--hedge-millis":
+                        Helper.hedgeMillis = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--verify-interval":
+                        Helper.verifyIntervalSeconds = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--scrub-mb-per-sec":
+                        Helper.scrubBytesPerSecond = Long.parseLong(args[i+1]) * 1024 * 1024;
+                        i++;
+                        break;
+                    case "--scrub-interval":
+                        Helper.scrubIntervalSeconds = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--scrub-threads":
+                        Helper.scrubThreads = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--checksum-cache-mb":
+                        Helper.checksumCacheBytes = Long.parseLong(args[i+1]) * 1024 * 1024;
+                        i++;
+                        break;
+                    case "--storage":
+                        Helper.storageEngine = args[i+1];
+                        i++;
+                        if (!List.of("file", "mapped", "segment").contains(Helper.storageEngine))
+                            throw new IllegalArgumentException("Storage must be file, mapped or segment");
+                        break;
+                    case "--sync-writes":
+                        Helper.syncWrites = true;
+                        break;
+                    case "--group-commit-millis":
+                        Helper.groupCommitMillis = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--max-mapped":
+                        Helper.maxMappedFiles = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--segment-mb":
+                        Helper.segmentBytes = Long.parseLong(args[i+1]) * 1024 * 1024;
+                        i++;
+                        break;
+                    case "--chunk-cache-mb":
+                        Helper.chunkCacheBytes = Long.parseLong(args[i+1]) * 1024 * 1024;
+                        i++;
+                        break;
                     case "--controller-port":
                         controllerPort = Integer.parseInt(args[i+1]);
                         i++;
@@ -47,6 +99,84 @@ public class Main {
                         chunkPort = Integer.parseInt(args[i+1]);
                         i++;
                         break;
+                    case "--write-window":
+                        Helper.writeWindow = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.writeWindow < 1)
+                            throw new IllegalArgumentException("Write window must be positive");
+                        break;
+                    case "--location-cache-size":
+                        Helper.locationCacheSize = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--location-cache-ttl":
+                        Helper.locationCacheTtlSeconds = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--read-ahead":
+                        Helper.readAheadWindow = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.readAheadWindow < 1)
+                            throw new IllegalArgumentException("Read-ahead window must be positive");
+                        break;
+                    case "--dispersal-threads":
+                        Helper.dispersalThreads = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.dispersalThreads < 1)
+                            throw new IllegalArgumentException("Dispersal threads must be positive");
+                        break;
+                    case "--write-retries":
+                        Helper.writeRetries = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--write-quorum":
+                        Helper.writeQuorum = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.writeQuorum < Helper.DATA_SHARDS || Helper.writeQuorum > Helper.TOTAL_SHARDS)
+                            throw new IllegalArgumentException("Write quorum must be between data and total shards");
+                        break;
+                    case "--chunk-workers":
+                        Helper.chunkWorkers = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.chunkWorkers < 1)
+                            throw new IllegalArgumentException("Chunk workers must be positive");
+                        break;
+                    case "--chunk-queue":
+                        Helper.chunkQueueCapacity = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--controller-workers":
+                        Helper.controllerWorkers = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.controllerWorkers < 1)
+                            throw new IllegalArgumentException("Controller workers must be positive");
+                        break;
+                    case "--controller-queue":
+                        Helper.controllerQueueCapacity = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--max-connections":
+                        Helper.maxServerConnections = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--busy-retries":
+                        Helper.busyRetries = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--stats-interval":
+                        Helper.statsIntervalSeconds = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
+                    case "--connections-per-node":
+                        Helper.connectionsPerEndpoint = Integer.parseInt(args[i+1]);
+                        i++;
+                        if (Helper.connectionsPerEndpoint < 1)
+                            throw new IllegalArgumentException("Connections per node must be positive");
+                        break;
+                    case "--pipeline-depth":
+                        Helper.pipelineDepth = Integer.parseInt(args[i+1]);
+                        i++;
+                        break;
                     case "--chunk-machines":
                         chunkMachines = args[i+1].split(",");
                         i++;
@@ -78,6 +208,8 @@ public class Main {
             }
         }
         Helper.replicationFactor = Helper.useReplication ? Helper._replicationFactor : 1;
+        if (Helper.statsIntervalSeconds > 0)
+            Metrics.startReporter(Helper.statsIntervalSeconds);
 
         if (controllerMachine.equals("") || controllerPort == 0 || chunkPort == 0) {
             System.out.println("Incomplete arguments provided");
@@ -149,6 +281,35 @@ public class Main {
         System.out.println("\t--chunk-machines: (optional) comma-delimited list of machines the chunk servers will run on");
         System.out.println("\t--debug: (optional) print extra debug output");
         System.out.println("\t--replication: (optional) use replication (omit to use erasure coding, do not mix)");
+        System.out.println("\t--hedged-reads: (optional) erasure reads decode from the first 6 shards to arrive");
+        System.out.println("\t--hedge-millis: (optional) wait this long for a data shard before requesting parity (default 50)");
+        System.out.println("\t--verify-interval: (optional) seconds a clean checksum pass lets replicas be served unchecked, 0 always checks (default 60)");
+        System.out.println("\t--scrub-mb-per-sec: (optional) disk reads a chunk server spends checking replicas in the background, 0 disables (default 4)");
+        System.out.println("\t--scrub-interval: (optional) seconds between background scrub passes (default 3600)");
+        System.out.println("\t--scrub-threads: (optional) replicas scrubbed at once (default 2)");
+        System.out.println("\t--checksum-cache-mb: (optional) memory a chunk server spends caching slice hashes (default 16)");
+        System.out.println("\t--storage: (optional) chunk server storage: file (one file per shard), mapped (the same, memory-mapped) or segment (append-only log) (default file)");
+        System.out.println("\t--sync-writes: (optional) chunk servers ack writes only once they are on disk, forcing them in batches");
+        System.out.println("\t--group-commit-millis: (optional) with --sync-writes, how long a write waits to share a disk force (default 2)");
+        System.out.println("\t--max-mapped: (optional) files the mapped store keeps mapped at once (default 8192)");
+        System.out.println("\t--segment-mb: (optional) size at which the segment store starts a new segment file (default 64)");
+        System.out.println("\t--chunk-cache-mb: (optional) off-heap memory for verified contents of hot chunks, 0 disables (default 64)");
+        System.out.println("\t--chunk-workers: (optional) chunk server request threads (default 4 per core)");
+        System.out.println("\t--chunk-queue: (optional) requests a chunk server queues before pushing back (default 1024)");
+        System.out.println("\t--controller-workers: (optional) controller request threads (default 2 per core)");
+        System.out.println("\t--controller-queue: (optional) requests the controller queues before pushing back (default 4096)");
+        System.out.println("\t--max-connections: (optional) connections a server accepts before answering busy (default 4096)");
+        System.out.println("\t--busy-retries: (optional) times a request backs off and retries a busy server (default 5)");
+        System.out.println("\t--stats-interval: (optional) print metrics every this many seconds (default off)");
+        System.out.println("\t--connections-per-node: (optional) connections opened to each remote node at most (default 4)");
+        System.out.println("\t--pipeline-depth: (optional) requests in flight per connection before opening another (default 32)");
+        System.out.println("\t--write-window: (optional) max chunks held in client memory while writing (default 8)");
+        System.out.println("\t--location-cache-size: (optional) shard locations cached by the client (default 100000)");
+        System.out.println("\t--location-cache-ttl: (optional) seconds a cached shard location stays valid (default 60)");
+        System.out.println("\t--read-ahead: (optional) chunks the client fetches concurrently while reading (default 8)");
+        System.out.println("\t--dispersal-threads: (optional) max shard writes the client runs at once (default 16)");
+        System.out.println("\t--write-retries: (optional) extra placements tried for a failed shard write (default 1)");
+        System.out.println("\t--write-quorum: (optional) shards (6-9) that must be durable before a chunk is committed (default 9)");
     }
 
     private static void StartProcess(String machine, String path, String args, int pIdx) {
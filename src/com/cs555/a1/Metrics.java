@@ -0,0 +1,51 @@
+package com.cs555.a1;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide named counters and gauges. Components register what they want to expose; with --stats-interval the
+ * current values are printed periodically, one line per report.
+ */
+public class Metrics {
+    private static final ConcurrentSkipListMap<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public static AtomicLong counter(String name) {
+        return counters.computeIfAbsent(name, k -> {
+            AtomicLong counter = new AtomicLong();
+            metrics.put(name, counter::get);
+            return counter;
+        });
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        metrics.put(name, supplier);
+    }
+
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> metric : metrics.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(metric.getKey()).append('=').append(metric.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+
+    static void startReporter(int intervalSeconds) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println("stats: " + snapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,120 @@
+package com.cs555.a1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Wire format shared by every node. Each message is one length-prefixed frame:
+ *
+ *   int length      bytes that follow this field
+ *   int requestId   chosen by the caller, echoed in the response, so responses may come back in any order
+ *   byte opcode     what to do (requests) or what was done (responses)
+ *   byte status     OK in requests; OK, BUSY or ERROR in responses
+ *   payload         opcode-specific fields, written with DataOutputStream
+ *
+ * A connection carries any number of frames in both directions, so callers can pipeline requests. A response frame
+ * with request id 0 and status BUSY means the server refused the whole connection.
+ */
+public final class Protocol {
+    public static final int HEADER_BYTES = 10;  // includes the length field itself
+
+    // response status
+    public static final byte OK = 0;
+    public static final byte BUSY = 1;  // not processed, retry later
+    public static final byte ERROR = 2;  // payload is a UTF message
+
+    // chunk server opcodes
+    public static final byte PING = 1;  // checking a node is alive, by the controller or on an idle pooled connection
+    public static final byte WRITE = 2;  // store one packet of a shard while forwarding it down the replica chain
+    public static final byte READ = 3;  // read a shard or a range of it
+    public static final byte READ_RANGES = 4;  // read several verified ranges of a shard, for repairing a replica
+
+    // controller opcodes
+    public static final byte PLACE = 16;  // pick servers for one shard
+    public static final byte ALLOCATE = 17;  // pick servers for a run of chunks
+    public static final byte LOCATE = 18;  // list the holders of every shard of a file
+    public static final byte LOOKUP = 19;  // pick one server to read a shard from
+    public static final byte TADDLE = 20;  // report servers that lost or failed to store a shard
+    public static final byte HEARTBEAT = 21;  // chunk server inventory, whole or changes since the last report
+    public static final byte REPLICAS = 22;  // list every other server to repair a shard from
+
+    private Protocol() {
+    }
+
+    // whether doing the request twice has the same effect as doing it once, so one lost with its connection can be
+    // sent again without knowing whether the server got it; LOOKUP and REPLICAS may carry a failure report, so aren't
+    public static boolean isIdempotent(byte opcode) {
+        return opcode == PING || opcode == READ || opcode == READ_RANGES || opcode == LOCATE;
+    }
+
+    /**
+     * Builds a frame in one buffer: the header is reserved up front, the payload is written through data, and the
+     * length is filled in by toBuffer, so a frame is never copied on its way to the socket. A response may end with a
+     * region of a file, which the server sends straight from the page cache after the buffer.
+     */
+    public static class FrameBuilder extends ByteArrayOutputStream {
+        public final DataOutputStream data = new DataOutputStream(this);
+        private FileChannel file;
+        private long filePosition;
+        private long fileCount;
+
+        public FrameBuilder(int requestId, byte opcode, byte status) {
+            super(256);
+            count = HEADER_BYTES;
+            ByteBuffer.wrap(buf).putInt(4, requestId).put(8, opcode).put(9, status);
+        }
+
+        public void setRequestId(int requestId) {
+            ByteBuffer.wrap(buf).putInt(4, requestId);
+        }
+
+        public int getRequestId() {
+            return ByteBuffer.wrap(buf).getInt(4);
+        }
+
+        public void setStatus(byte status) {
+            buf[9] = status;
+        }
+
+        // ends the payload with count bytes of file from position; the frame takes ownership of the channel
+        public void attachFile(FileChannel file, long position, long count) {
+            this.file = file;
+            this.filePosition = position;
+            this.fileCount = count;
+        }
+
+        public FileChannel getFile() {
+            return file;
+        }
+
+        public long getFilePosition() {
+            return filePosition;
+        }
+
+        public long getFileCount() {
+            return fileCount;
+        }
+
+        // drops any payload written so far, keeping the header
+        public void clearPayload() {
+            count = HEADER_BYTES;
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+                file = null;
+                fileCount = 0;
+            }
+        }
+
+        // the header and buffered payload; an attached file region follows it on the wire
+        public ByteBuffer toBuffer() {
+            ByteBuffer.wrap(buf).putInt(0, (int) (count - 4 + fileCount));
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
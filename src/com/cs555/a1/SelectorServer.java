@@ -0,0 +1,344 @@
+package com.cs555.a1;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request server built on a single selector thread and a bounded pool of workers, speaking the framed protocol in
+ * Protocol. The selector does all socket I/O without blocking: it cuts incoming bytes into frames and queues each
+ * one for a worker, so many requests from one connection can be served at once and answered out of order. A request
+ * that finds the work queue full is answered BUSY straight away, and a connection whose responses are piling up
+ * unread is not read from until they drain, so load beyond capacity is pushed back on clients rather than queued.
+ * A handler that has to wait on another node can hand back a future instead and let its worker go, so a request
+ * waiting on a peer whose own workers are all waiting on this server doesn't stall both until timeouts fire.
+ */
+public class SelectorServer {
+    public interface Handler {
+        // reads the request payload from in and writes the response payload to response.data; throwing answers ERROR.
+        // Returns null once the response is written, or a future that completes when it is, failing to answer ERROR
+        CompletableFuture<Void> handle(String host, byte opcode, DataInputStream in, Protocol.FrameBuilder response)
+                throws IOException;
+    }
+
+    // a response on its way out: the buffered frame, then any file region attached to it
+    private static class Outbound {
+        final ByteBuffer buffer;
+        final FileChannel file;
+        long filePosition;
+        long fileRemaining;
+
+        Outbound(Protocol.FrameBuilder frame) {
+            this.buffer = frame.toBuffer();
+            this.file = frame.getFile();
+            this.filePosition = frame.getFilePosition();
+            this.fileRemaining = frame.getFileCount();
+        }
+
+        long remaining() {
+            return buffer.remaining() + fileRemaining;
+        }
+
+        // writes as much as the socket takes without blocking; returns the number of bytes written
+        long writeTo(SocketChannel channel) throws IOException {
+            long written = channel.write(buffer);
+            while (!buffer.hasRemaining() && fileRemaining > 0) {
+                long sent = file.transferTo(filePosition, fileRemaining, channel);
+                if (sent == 0) {
+                    if (filePosition >= file.size())  // the file was cut short under us; the frame can't be finished
+                        throw new IOException("File shrank while being sent");
+                    break;
+                }
+                filePosition += sent;
+                fileRemaining -= sent;
+                written += sent;
+            }
+            if (remaining() == 0)
+                release();
+            return written;
+        }
+
+        void release() {
+            if (file == null)
+                return;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<Outbound> outbound = new ArrayDeque<>();  // guarded by this
+        // grown for a frame larger than its usual size, and shrunk back once the frame is through
+        ByteBuffer readBuffer = ByteBuffer.allocate(Helper.BpChunk * 2);
+        long pendingBytes = 0;  // guarded by this
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile String host;
+        volatile long lastActive = System.nanoTime();
+        private boolean closed = false;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            connections.incrementAndGet();
+        }
+
+        String host() {
+            if (host == null)
+                host = channel.socket().getInetAddress().getHostName();
+            return host;
+        }
+
+        // called from workers as well as the selector; writes directly when nothing is queued ahead of it
+        synchronized void send(Protocol.FrameBuilder response) {
+            Outbound frame = new Outbound(response);
+            if (closed) {
+                frame.release();
+                return;
+            }
+            try {
+                if (outbound.isEmpty())
+                    frame.writeTo(channel);
+                if (frame.remaining() > 0) {
+                    outbound.add(frame);
+                    pendingBytes += frame.remaining();
+                    int ops = SelectionKey.OP_WRITE;
+                    if (pendingBytes < Helper.maxPendingBytes)
+                        ops |= SelectionKey.OP_READ;
+                    key.interestOps(ops);
+                    selector.wakeup();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                frame.release();
+                close();
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            while (!outbound.isEmpty()) {
+                Outbound frame = outbound.peek();
+                pendingBytes -= frame.writeTo(channel);
+                if (frame.remaining() > 0)
+                    return;
+                outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // cuts complete frames off the read buffer and dispatches them; returns false if the peer has closed
+        boolean read() throws IOException {
+            if (channel.read(readBuffer) < 0)
+                return false;
+            lastActive = System.nanoTime();
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < Protocol.HEADER_BYTES - 4 || length > Helper.maxFrameBytes)
+                    throw new IOException("Bad frame length " + length);
+                if (readBuffer.remaining() < 4 + length) {
+                    if (readBuffer.capacity() < 4 + length) {  // grow to fit this frame
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                        return true;
+                    }
+                    break;
+                }
+                readBuffer.getInt();
+                int requestId = readBuffer.getInt();
+                byte opcode = readBuffer.get();
+                readBuffer.get();  // requests carry no status
+                byte[] payload = new byte[length - (Protocol.HEADER_BYTES - 4)];
+                readBuffer.get(payload);
+                dispatch(this, requestId, opcode, payload);
+            }
+            readBuffer.compact();
+            if (readBuffer.capacity() > Helper.BpChunk * 2 && readBuffer.position() <= Helper.BpChunk * 2) {
+                ByteBuffer smaller = ByteBuffer.allocate(Helper.BpChunk * 2);
+                readBuffer.flip();
+                smaller.put(readBuffer);
+                readBuffer = smaller;
+            }
+            return true;
+        }
+
+        synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            connections.decrementAndGet();
+            for (Outbound frame : outbound)
+                frame.release();
+            outbound.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final String name;
+    private final Handler handler;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadPoolExecutor workers;
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong requests;
+    private final AtomicLong rejected;
+    private final AtomicLong errors;
+    private volatile boolean shutdown = false;
+
+    public SelectorServer(String name, int port, int numWorkers, int queueCapacity, int maxConnections,
+                          Handler handler) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), r -> new Thread(r, name + "-worker"));
+        this.maxConnections = maxConnections;
+        this.requests = Metrics.counter(name + ".requests");
+        this.rejected = Metrics.counter(name + ".rejected");
+        this.errors = Metrics.counter(name + ".errors");
+        Metrics.gauge(name + ".queueDepth", () -> workers.getQueue().size());
+        Metrics.gauge(name + ".activeWorkers", workers::getActiveCount);
+        Metrics.gauge(name + ".connections", connections::get);
+    }
+
+    public void close() throws IOException {
+        shutdown = true;
+        selector.wakeup();
+        serverChannel.close();
+    }
+
+    public void run() throws IOException {
+        long lastIdleCheck = System.nanoTime();
+        while (!shutdown) {
+            selector.select(1000);
+            if (shutdown)
+                break;
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isWritable())
+                        connection.flush();
+                    if (key.isValid() && key.isReadable() && !connection.read())
+                        connection.close();
+                } catch (IOException | CancelledKeyException e) {
+                    if (Helper.debug)
+                        System.out.println(name + ": closing connection to " + connection.host + ": " + e.getMessage());
+                    connection.close();
+                }
+            }
+            if (System.nanoTime() - lastIdleCheck > TimeUnit.SECONDS.toNanos(1)) {
+                lastIdleCheck = System.nanoTime();
+                closeIdle();
+            }
+        }
+        workers.shutdown();
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (connections.get() >= maxConnections) {
+            // a lone header always fits in a fresh socket's send buffer, so this never blocks the selector
+            rejected.incrementAndGet();
+            channel.write(new Protocol.FrameBuilder(0, (byte) 0, Protocol.BUSY).toBuffer());
+            channel.close();
+            return;
+        }
+        new Connection(channel);
+    }
+
+    private void dispatch(Connection connection, int requestId, byte opcode, byte[] payload) {
+        connection.inFlight.incrementAndGet();
+        try {
+            workers.execute(() -> serve(connection, requestId, opcode, payload));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            connection.inFlight.decrementAndGet();
+            connection.send(new Protocol.FrameBuilder(requestId, opcode, Protocol.BUSY));
+        }
+    }
+
+    private void serve(Connection connection, int requestId, byte opcode, byte[] payload) {
+        requests.incrementAndGet();
+        Protocol.FrameBuilder response = new Protocol.FrameBuilder(requestId, opcode, Protocol.OK);
+        CompletableFuture<Void> answered;
+        try {
+            answered = handler.handle(connection.host(), opcode,
+                    new DataInputStream(new ByteArrayInputStream(payload)), response);
+        } catch (IOException | RuntimeException e) {
+            answered = CompletableFuture.failedFuture(e);
+        }
+        if (answered == null)
+            finish(connection, opcode, response, null);
+        else
+            answered.whenComplete((ignored, e) -> finish(connection, opcode, response, e));
+    }
+
+    // sends the response, or ERROR if the handler failed
+    private void finish(Connection connection, byte opcode, Protocol.FrameBuilder response, Throwable e) {
+        while ((e instanceof CompletionException || e instanceof UncheckedIOException) && e.getCause() != null)
+            e = e.getCause();
+        if (e != null) {
+            errors.incrementAndGet();
+            System.out.println(name + ": request " + opcode + " from " + connection.host + " failed: " + e);
+            response.clearPayload();
+            response.setStatus(Protocol.ERROR);
+            try {
+                response.data.writeUTF(String.valueOf(e.getMessage()));
+            } catch (IOException ignored) {
+            }
+        }
+        connection.send(response);
+        connection.lastActive = System.nanoTime();
+        connection.inFlight.decrementAndGet();
+    }
+
+    private void closeIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Helper.serverIdleMillis);
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection))
+                continue;
+            Connection connection = (Connection) key.attachment();
+            if (connection.inFlight.get() == 0 && connection.lastActive - cutoff < 0)
+                connection.close();
+        }
+    }
+}
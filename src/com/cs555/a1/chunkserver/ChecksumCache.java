@@ -0,0 +1,90 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Metrics;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slice hash tables of the chunks on this server, so a read doesn't go to the store for them every time. A table is
+ * one byte[] of Helper.BpHash bytes per slice, loaded from the store on first use and patched by writes rather than
+ * reloaded. Tables are evicted least recently used once they total more than Helper.checksumCacheBytes.
+ *
+ * Returned tables are never modified afterwards (a write swaps in a patched copy), so callers can hash against one
+ * without holding a lock.
+ */
+class ChecksumCache {
+    private final ChunkStore store;
+    private final LinkedHashMap<String, byte[]> tables = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long generation = 0;  // bumped by every change, so a load that raced one is not cached
+    private final AtomicLong hits = Metrics.counter("checksumCache.hits");
+    private final AtomicLong misses = Metrics.counter("checksumCache.misses");
+    private final AtomicLong evictions = Metrics.counter("checksumCache.evictions");
+
+    ChecksumCache(ChunkStore store) {
+        this.store = store;
+        Metrics.gauge("checksumCache.bytes", this::size);
+    }
+
+    // the hash table of the chunk, read from the store if not cached
+    byte[] get(String fileName) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            byte[] table = tables.get(fileName);
+            if (table != null) {
+                hits.incrementAndGet();
+                return table;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        byte[] table = store.readHashes(fileName);
+        synchronized (this) {
+            if (generation == loadGeneration)
+                put(fileName, table);
+        }
+        return table;
+    }
+
+    // records hashes just written to the store at hashOffset; a chunk that isn't cached stays that way
+    synchronized void update(String fileName, int hashOffset, byte[] hashes) {
+        generation++;
+        byte[] table = tables.get(fileName);
+        if (table == null)
+            return;
+        byte[] patched = new byte[Integer.max(table.length, hashOffset + hashes.length)];
+        System.arraycopy(table, 0, patched, 0, table.length);
+        System.arraycopy(hashes, 0, patched, hashOffset, hashes.length);
+        put(fileName, patched);
+    }
+
+    synchronized void invalidate(String fileName) {
+        generation++;
+        byte[] table = tables.remove(fileName);
+        if (table != null)
+            bytes -= table.length;
+    }
+
+    private synchronized long size() {
+        return bytes;
+    }
+
+    private void put(String fileName, byte[] table) {
+        byte[] previous = tables.put(fileName, table);
+        bytes += table.length - (previous == null ? 0 : previous.length);
+        Iterator<Map.Entry<String, byte[]>> eldest = tables.entrySet().iterator();
+        while (bytes > Helper.checksumCacheBytes && eldest.hasNext()) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            if (entry.getKey().equals(fileName))
+                continue;
+            bytes -= entry.getValue().length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verified contents of the most read chunks, kept off the heap so a large cache doesn't weigh on the collector. One
+ * direct buffer, Helper.chunkCacheBytes where there is anything to cache, is cut into chunk-sized slots; when all are taken, a CLOCK hand evicts the
+ * first slot not read since the hand last passed it. A hit skips both the disk and the checksum pass, so only
+ * contents that passed one go in, and any write to a chunk drops it.
+ */
+class ChunkCache {
+    private final ByteBuffer slab;
+    private final int slotSize = Helper.BpChunk;
+    private final String[] names;  // chunk in each slot, null if free
+    private final int[] lengths;
+    private final boolean[] referenced;
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private int hand = 0;
+    private long generation = 0;  // bumped by every invalidation, so contents read before one aren't cached after it
+    private final AtomicLong hits = Metrics.counter("chunkCache.hits");
+    private final AtomicLong misses = Metrics.counter("chunkCache.misses");
+    private final AtomicLong evictions = Metrics.counter("chunkCache.evictions");
+
+    // a cache of no bytes has no slots, so it never holds anything and allocates nothing
+    ChunkCache(long bytes) {
+        int numSlots = (int) Long.min(bytes / slotSize, Integer.MAX_VALUE / slotSize);
+        this.slab = ByteBuffer.allocateDirect(numSlots * slotSize);
+        this.names = new String[numSlots];
+        this.lengths = new int[numSlots];
+        this.referenced = new boolean[numSlots];
+    }
+
+    // taken before reading a chunk from disk and handed to put, which ignores contents a write may have outdated
+    synchronized long stamp() {
+        return generation;
+    }
+
+    // bytes [offset, offset + length) of the cached chunk, to its end if length is -1; null if not cached, or if offset
+    // is past the end, which the disk read turns into a failure of its own
+    synchronized byte[] get(String fileName, int offset, int length) {
+        Integer slot = slots.get(fileName);
+        if (slot == null || offset > lengths[slot]) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        referenced[slot] = true;
+        int count = length == -1 ? lengths[slot] - offset : Integer.min(length, lengths[slot] - offset);
+        byte[] contents = new byte[count];
+        ByteBuffer view = slab.duplicate();
+        view.position(slot * slotSize + offset);
+        view.get(contents);
+        return contents;
+    }
+
+    synchronized void put(String fileName, byte[] contents, long stamp) {
+        if (names.length == 0 || contents.length > slotSize || stamp != generation || slots.containsKey(fileName))
+            return;
+        int slot = victim();
+        if (names[slot] != null) {
+            slots.remove(names[slot]);
+            evictions.incrementAndGet();
+        }
+        ByteBuffer view = slab.duplicate();
+        view.position(slot * slotSize);
+        view.put(contents);
+        names[slot] = fileName;
+        lengths[slot] = contents.length;
+        referenced[slot] = false;
+        slots.put(fileName, slot);
+    }
+
+    synchronized void invalidate(String fileName) {
+        generation++;
+        Integer slot = slots.remove(fileName);
+        if (slot != null)
+            names[slot] = null;
+    }
+
+    // the first free slot, or one not read since the hand last went by, clearing read marks on the way
+    private int victim() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % names.length;
+            if (names[slot] == null || !referenced[slot])
+                return slot;
+            referenced[slot] = false;
+        }
+    }
+}
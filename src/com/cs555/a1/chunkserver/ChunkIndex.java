@@ -0,0 +1,233 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Chunk;
+import com.cs555.a1.HeartbeatReport;
+import com.cs555.a1.Helper;
+import com.cs555.a1.InventoryDigest;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chunks this server holds, kept on disk so a restarted server reports its full inventory in its first heartbeat
+ * instead of nothing. Every change is appended to chunkHome/chunks.journal; after SNAPSHOT_EVERY changes the whole
+ * index is written to chunks.snapshot and the journal starts over. Startup loads the snapshot and replays the
+ * journal, or, when neither exists, rebuilds the index from what the store holds.
+ *
+ * Journal record: byte PUT, UTF name, int version, int sequence; or byte REMOVE, UTF name.
+ * Snapshot: int count, then count times UTF name, int version, int sequence.
+ */
+class ChunkIndex {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int SNAPSHOT_EVERY = 10000;
+
+    final ConcurrentHashMap<String, Chunk> chunks = new ConcurrentHashMap<>();
+    private final Path snapshotPath = Paths.get(Helper.chunkHome, "chunks.snapshot");
+    private final Path journalPath = Paths.get(Helper.chunkHome, "chunks.journal");
+    private FileChannel journal;  // guarded by this
+    private int journalRecords = 0;  // guarded by this
+    private HashMap<String, Integer> changes = new HashMap<>();  // versions since the last heartbeat; guarded by this
+    private final InventoryDigest digest = new InventoryDigest();  // of the reportable names in chunks
+
+    ChunkIndex(ChunkStore store) throws IOException {
+        long start = System.nanoTime();
+        boolean found = Files.exists(snapshotPath) || Files.exists(journalPath);
+        if (found) {
+            if (Files.exists(snapshotPath))
+                loadSnapshot();
+            replayJournal();
+        } else {
+            rebuild(store);
+        }
+        for (String fileName : chunks.keySet()) {
+            if (sequenceOf(fileName) >= 0)
+                digest.add(fileName);
+        }
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (!found)
+            snapshot();
+        System.out.printf("Chunk index %s with %d chunks in %d ms%n", found ? "loaded" : "rebuilt", chunks.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // the chunk's sequence number within its file, or -1 if the name isn't a shard's
+    static int sequenceOf(String fileName) {
+        String[] splits = fileName.split("\\.");
+        if (splits.length < 3)
+            return -1;
+        try {
+            Integer.parseInt(splits[splits.length - 1]);
+            return Integer.parseInt(splits[splits.length - 2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // records a new chunk or a change to one already in the index
+    synchronized void put(Chunk chunk) throws IOException {
+        Chunk previous = chunks.put(chunk.fileName, chunk);
+        if (chunk.sequence >= 0) {
+            changes.put(chunk.fileName, chunk.version);
+            if (previous == null)
+                digest.add(chunk.fileName);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(PUT);
+        out.writeUTF(chunk.fileName);
+        out.writeInt(chunk.version);
+        out.writeInt(chunk.sequence);
+        append(record.toByteArray());
+    }
+
+    synchronized void remove(String fileName) throws IOException {
+        if (chunks.remove(fileName) == null)
+            return;
+        if (sequenceOf(fileName) >= 0) {
+            changes.put(fileName, HeartbeatReport.REMOVED);
+            digest.remove(fileName);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(REMOVE);
+        out.writeUTF(fileName);
+        append(record.toByteArray());
+    }
+
+    // what changed since the last call, for a delta heartbeat
+    synchronized HashMap<String, Integer> takeChanges() {
+        HashMap<String, Integer> taken = changes;
+        changes = new HashMap<>();
+        return taken;
+    }
+
+    long[] digests() {
+        return digest.digests();
+    }
+
+    // every reportable chunk in the given buckets, with its version
+    HashMap<String, Integer> bucketContents(int[] buckets) {
+        boolean[] wanted = new boolean[InventoryDigest.BUCKETS];
+        for (int bucket : buckets)
+            wanted[bucket] = true;
+        HashMap<String, Integer> contents = new HashMap<>();
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.sequence >= 0 && wanted[InventoryDigest.bucketOf(chunk.fileName)])
+                contents.put(chunk.fileName, chunk.version);
+        }
+        return contents;
+    }
+
+    // forces the journal to disk, for writes acked only once durable
+    synchronized void sync() throws IOException {
+        journal.force(false);
+    }
+
+    private void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining())
+            journal.write(buffer);
+        if (++journalRecords >= SNAPSHOT_EVERY)
+            snapshot();
+    }
+
+    // writes the whole index beside the old snapshot, swaps it in, then empties the journal it covers
+    private synchronized void snapshot() throws IOException {
+        Path temp = Paths.get(Helper.chunkHome, "chunks.snapshot.tmp");
+        ArrayList<Chunk> all = new ArrayList<>(chunks.values());
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(all.size());
+            for (Chunk chunk : all) {
+                out.writeUTF(chunk.fileName);
+                out.writeInt(chunk.version);
+                out.writeInt(chunk.sequence);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journal.force(true);
+        journalRecords = 0;
+    }
+
+    private void loadSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Chunk chunk = new Chunk();
+                chunk.fileName = in.readUTF();
+                chunk.version = in.readInt();
+                chunk.sequence = in.readInt();
+                chunks.put(chunk.fileName, chunk);
+            }
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        if (!Files.exists(journalPath))
+            return;
+        byte[] records = Files.readAllBytes(journalPath);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        int position = 0;
+        try {
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                String fileName = in.readUTF();
+                if (op == PUT) {
+                    Chunk chunk = new Chunk();
+                    chunk.fileName = fileName;
+                    chunk.version = in.readInt();
+                    chunk.sequence = in.readInt();
+                    chunks.put(fileName, chunk);
+                } else if (op == REMOVE) {
+                    chunks.remove(fileName);
+                } else {
+                    break;
+                }
+                position = records.length - in.available();
+                journalRecords++;
+            }
+        } catch (EOFException ignored) {  // a record torn by a crash
+        }
+        if (position < records.length) {
+            System.out.println("Dropping " + (records.length - position) + " torn bytes from the chunk journal");
+            try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                channel.truncate(position);
+            }
+        }
+    }
+
+    // no index on disk: take every shard the store holds, at version 1, checking them in parallel
+    private void rebuild(ChunkStore store) throws IOException {
+        Collection<String> names = store.list();
+        names.parallelStream().forEach(fileName -> {
+            int sequence = sequenceOf(fileName);
+            if (sequence < 0)
+                return;
+            try {
+                store.read(fileName, 0, 0);  // opens it, so a shard we can't read is left out
+            } catch (IOException e) {
+                return;
+            }
+            Chunk chunk = new Chunk();
+            chunk.fileName = fileName;
+            chunk.version = 1;
+            chunk.sequence = sequence;
+            chunks.put(fileName, chunk);
+        });
+    }
+}
@@ -1,20 +1,30 @@
 package com.cs555.a1.chunkserver;
 
 import com.cs555.a1.Chunk;
+import com.cs555.a1.HeartbeatReport;
 import com.cs555.a1.Helper;
+import com.cs555.a1.InventoryDigest;
+import com.cs555.a1.Metrics;
+import com.cs555.a1.Protocol;
+import com.cs555.a1.SelectorServer;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChunkServer {
     private static class FailureResult {
@@ -43,20 +53,36 @@ public class ChunkServer {
     private int controllerPort;
     private String controllerMachine;
     private int chunkPort;
-    private ServerSocket ss;
-    private boolean shutdown = false;
-    private volatile boolean needHeartbeat;
+    private final SelectorServer server;
     //need to store the chunks that are at this server (filename with underscore and integer appended),
     //for each chunk we need version, and 8 SHA-1 hashes (1 per 8KB),
-    private final ConcurrentHashMap<String, Chunk> chunks;
+    private final ChunkIndex index;
+    private final ConcurrentHashMap<String, Chunk> chunks;  // index.chunks
+    private final AtomicLong directReads = Metrics.counter("chunkserver.directReads");
+    private final AtomicLong recoveredRanges = Metrics.counter("chunkserver.recoveredRanges");
+    private final ChunkStore store;
+    private final ChecksumCache checksums;
+    private final GroupCommitter committer;  // null unless writes are acked only once durable
+    // only replicas are served from it, so erasure-coded shards leave it empty
+    private final ChunkCache chunkCache = new ChunkCache(Helper.useReplication ? Helper.chunkCacheBytes : 0);
+    // repairs for reads: they wait on other chunk servers, so they mustn't hold a request worker while they do
+    private final ExecutorService recoveryPool = Executors.newFixedThreadPool(Helper.chunkWorkers, r -> {
+        Thread t = new Thread(r, "chunk-recovery");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ChunkServer(int controllerPort, String controllerMachine, int chunkPort) throws IOException {
         this.controllerPort = controllerPort;
         this.controllerMachine = controllerMachine;
         this.chunkPort = chunkPort;
-        this.chunks = new ConcurrentHashMap<>();
-        this.needHeartbeat = true;
-        ss = new ServerSocket(chunkPort);
+        this.store = ChunkStore.open(Helper.storageEngine);
+        this.index = new ChunkIndex(store);
+        this.chunks = index.chunks;
+        this.checksums = new ChecksumCache(store);
+        this.committer = Helper.syncWrites ? new GroupCommitter(store, index) : null;
+        server = new SelectorServer("chunkserver", chunkPort, Helper.chunkWorkers, Helper.chunkQueueCapacity,
+                Helper.maxServerConnections, (host, opcode, in, response) -> new ChunkRequestHandler(in, response).handle(opcode));
         final Thread mainThread = Thread.currentThread();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
@@ -69,338 +95,653 @@ public class ChunkServer {
     }
 
     private void Close() throws IOException {
-        ss.close();
-        shutdown = true;
+        server.close();
     }
 
-    public void run() throws IOException, InterruptedException {
-        // running infinite loop for getting
-        // client request
-        Thread mT = new ChunkHeartbeatHandler();
-        mT.start();
-        while (!shutdown)
-        {
-            Socket s = null;
-            Thread.sleep(100);
-            try
-            {
-                s = ss.accept();
-                DataInputStream dis = new DataInputStream(s.getInputStream());
-                DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-                Thread t = new ChunkRequestHandler(dis, dos);
-                t.start();
+    public void run() throws IOException {
+        new HeartbeatEngine().start();
+        if (Helper.useReplication && Helper.scrubBytesPerSecond > 0)  // erasure shards carry no checksums to scrub
+            new ChunkScrubber().start();
+        server.run();
+    }
 
-            }
-            catch (Exception e){
-                if (s != null){
-                    s.close();
+    /**
+     * Reports to the controller every Helper.MinorHeartbeatSeconds. A report normally carries only the chunks added,
+     * re-versioned or removed since the previous one, so its size follows churn rather than the number of chunks held.
+     * The controller's answer says what it wants next: to check for drift it asks for this server's inventory digest,
+     * then for the buckets that differ, and it asks for the whole inventory only when it has lost track, as does a
+     * failed report. Follow-ups are sent at once, within the same beat.
+     */
+    private class HeartbeatEngine {
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        private byte want = HeartbeatReport.FULL;  // what the controller asked for; only touched on the scheduler thread
+        private int[] wantBuckets;
+        private long sequence = 0;
+        private final AtomicLong deltas = Metrics.counter("heartbeat.deltas");
+        private final AtomicLong fulls = Metrics.counter("heartbeat.fulls");
+        private final AtomicLong digests = Metrics.counter("heartbeat.digests");
+        private final AtomicLong bucketReports = Metrics.counter("heartbeat.buckets");
+        private final AtomicLong entries = Metrics.counter("heartbeat.entries");
+
+        void start() {
+            scheduler.scheduleWithFixedDelay(this::beat, 0, Helper.MinorHeartbeatSeconds, TimeUnit.SECONDS);
+        }
+
+        // an exception escaping would cancel every later beat, and the controller would soon count this server dead
+        private void beat() {
+            try {
+                // changes first: anything changing while the inventory is walked is sent again in the next delta
+                HashMap<String, Integer> changes = index.takeChanges();
+                for (int round = 0; round < 3; round++) {  // delta, digest, buckets at most
+                    if (!send(report(changes))) {
+                        want = HeartbeatReport.FULL;  // the controller may or may not have applied it
+                        return;
+                    }
+                    if (want == HeartbeatReport.DELTA)
+                        return;
+                    // applied, or else out of sequence and the full inventory asked for instead covers them
+                    changes = new HashMap<>();
                 }
+            } catch (RuntimeException e) {
+                System.out.println("Heartbeat failed, sending the full inventory next: " + e);
                 e.printStackTrace();
+                want = HeartbeatReport.FULL;
             }
         }
+
+        private HeartbeatReport report(HashMap<String, Integer> changes) {
+            long[] digest = null;
+            if (want == HeartbeatReport.FULL) {
+                changes = new HashMap<>();
+                for (Chunk chunk : chunks.values()) {
+                    if (chunk.sequence >= 0)
+                        changes.put(chunk.fileName, chunk.version);
+                }
+            } else if (want == HeartbeatReport.DIGEST) {
+                digest = index.digests();
+            } else if (want == HeartbeatReport.BUCKETS) {
+                // the listed buckets are sent whole and current, so their older changes are left out
+                HashMap<String, Integer> contents = index.bucketContents(wantBuckets);
+                boolean[] listed = new boolean[InventoryDigest.BUCKETS];
+                for (int bucket : wantBuckets)
+                    listed[bucket] = true;
+                for (Map.Entry<String, Integer> change : changes.entrySet()) {
+                    if (!listed[InventoryDigest.bucketOf(change.getKey())])
+                        contents.put(change.getKey(), change.getValue());
+                }
+                changes = contents;
+            }
+            return new HeartbeatReport(want, ++sequence, chunks.size(), changes, digest,
+                    want == HeartbeatReport.BUCKETS ? wantBuckets : null);
+        }
+
+        // true if the controller answered; want then holds what it asked for next
+        private boolean send(HeartbeatReport report) {
+            if (Helper.debug)
+                System.out.println("Sending heartbeat " + report.sequence + " to controller, kind = " + report.kind
+                        + ", entries = " + report.versions.size());
+            try {
+                Helper.connectionPool.call(controllerMachine, controllerPort, Protocol.HEARTBEAT, report::write,
+                        in -> {
+                            want = in.readByte();
+                            wantBuckets = want == HeartbeatReport.BUCKETS ? HeartbeatReport.readBuckets(in) : null;
+                            return null;
+                        });
+            } catch (IOException e) {
+                System.out.println("Error while sending heartbeat: " + e.getMessage());
+                return false;
+            }
+            switch (report.kind) {
+                case HeartbeatReport.FULL:
+                    fulls.incrementAndGet();
+                    break;
+                case HeartbeatReport.DIGEST:
+                    digests.incrementAndGet();
+                    break;
+                case HeartbeatReport.BUCKETS:
+                    bucketReports.incrementAndGet();
+                    break;
+                default:
+                    deltas.incrementAndGet();
+            }
+            entries.addAndGet(report.versions.size());
+            return true;
+        }
     }
 
-    private class ChunkHeartbeatHandler extends Thread {
-        @Override
-        public void run() {
-            Instant start = Instant.now();
-            int numMinor = 0;
-            boolean isMajor;
-            boolean firstRun = true;
-            while (true) {
-                if (needHeartbeat || Duration.between(start, Instant.now()).toSeconds() > Helper.MinorHeartbeatSeconds){
-                    start = Instant.now();
-                    if (firstRun || (numMinor >= Helper.MajorHeartbeatSeconds / Helper.MinorHeartbeatSeconds && !needHeartbeat)) {
-                        firstRun = false;
-                        isMajor = true;
-                        numMinor = 0;
-                    } else {
-                        isMajor = false;
-                        numMinor++;
-                    }
-                    System.out.println("Sending heartbeat to controller, ismajor = " + isMajor);
-                    try (
-                            Socket s = new Socket(controllerMachine, controllerPort);
-                            DataOutputStream out = new DataOutputStream(s.getOutputStream())
-                    ) {
-                        out.writeUTF("heartbeat");
-                        out.writeBoolean(isMajor);
-                        out.writeInt(chunks.size());
-                        int numChunks = 0;
-                        if (!isMajor) {
-                            for (String key : chunks.keySet()) {
-                                if (chunks.get(key).isNew) {
-                                    numChunks++;
-                                }
-                            }
-                        } else {
-                            numChunks = chunks.size();
-                        }
-                        out.writeInt(numChunks);
-                        for (String key : chunks.keySet()) {
-                            Chunk chunk = chunks.get(key);
-                            if (chunk.isNew || isMajor) {
-                                chunk.isNew = false;
-                                out.writeInt(chunk.version);
-                                out.writeUTF(chunk.fileName);
-                            }
-                        }
+    /**
+     * Checks stored replicas against their slice hashes in the background, so corruption is found and repaired before
+     * a client reads it. Every Helper.scrubIntervalSeconds a pass deals all chunks out to Helper.scrubThreads workers,
+     * which share a token bucket holding reads to Helper.scrubBytesPerSecond. Chunks written in the last 30 seconds or
+     * checked by a read within Helper.verifyIntervalSeconds are skipped.
+     */
+    private class ChunkScrubber {
+        private static final long SETTLE_NANOS = 30_000_000_000L;  // a chunk written this recently may still be landing
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scrubber");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ExecutorService workers = Executors.newFixedThreadPool(Helper.scrubThreads, r -> {
+            Thread t = new Thread(r, "scrubber-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+        private double tokens = 0;  // bytes that may be read now, negative while in debt; guarded by this
+        private long refilledAt = System.nanoTime();  // guarded by this
+        private final AtomicLong passes = Metrics.counter("scrub.passes");
+        private final AtomicLong scrubbed = Metrics.counter("scrub.chunks");
+        private final AtomicLong scrubbedBytes = Metrics.counter("scrub.bytes");
+        private final AtomicLong corrupt = Metrics.counter("scrub.corrupt");
+        private final AtomicLong repaired = Metrics.counter("scrub.repaired");
+        private final AtomicLong lost = Metrics.counter("scrub.lost");
+        private final AtomicLong errors = Metrics.counter("scrub.errors");
+
+        ChunkScrubber() {
+            Metrics.gauge("scrub.pending", pending::size);
+        }
 
-                    } catch (IOException e) {
-                        System.out.println("Error while sending heartbeat.");
-                        e.printStackTrace();
-                        dumpStack();
-                    }
-                    needHeartbeat = false;
+        void start() {
+            scheduler.scheduleWithFixedDelay(this::pass, Helper.scrubIntervalSeconds, Helper.scrubIntervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+
+        private void pass() {
+            pending.addAll(chunks.keySet());
+            ArrayList<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < Helper.scrubThreads; i++) {
+                tasks.add(() -> {
+                    for (String fileName = pending.poll(); fileName != null; fileName = pending.poll())
+                        scrub(fileName);
+                    return null;
+                });
+            }
+            try {
+                workers.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                pending.clear();
+                return;
+            }
+            passes.incrementAndGet();
+        }
+
+        private void scrub(String fileName) {
+            Chunk chunk = chunks.get(fileName);
+            long writtenAt = chunk == null ? 0 : chunk.writtenAt;
+            if (chunk == null || (writtenAt != 0 && System.nanoTime() - writtenAt < SETTLE_NANOS))
+                return;
+            if (chunk.verifiedAt != 0
+                    && System.nanoTime() - chunk.verifiedAt < Helper.verifyIntervalSeconds * 1_000_000_000L)
+                return;
+            try {
+                FailureResult result = readChunk(fileName, 0, -1);
+                throttle(result.contents == null ? Helper.BpChunk : result.contents.length);
+                scrubbed.incrementAndGet();
+                scrubbedBytes.addAndGet(result.contents == null ? 0 : result.contents.length);
+                if (result.sliceFailureRanges.isEmpty()) {
+                    chunk.verifiedAt = System.nanoTime();
+                    return;
                 }
+                if (chunks.get(fileName) != chunk || chunk.writtenAt != writtenAt)  // rewritten while we read it
+                    return;
+                corrupt.incrementAndGet();
+                System.out.println("Scrubber found " + result.sliceFailureRanges.size() + " damaged ranges in "
+                        + fileName);
+                FailureResult recovered = getRecoveredChunk(fileName, result, 0, -1);
+                if (recovered != null && recovered.sliceFailureRanges.isEmpty()) {
+                    repaired.incrementAndGet();
+                    chunk.verifiedAt = System.nanoTime();
+                } else {
+                    lost.incrementAndGet();
+                    discardChunk(fileName);
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                System.out.println("Scrubbing " + fileName + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+
+        // charges bytes to the bucket, which refills at the scrub rate and holds up to a second of it, then waits
+        // out any debt, so the rate holds across all workers however large each read is
+        private void throttle(long bytes) throws InterruptedException {
+            long rate = Helper.scrubBytesPerSecond;
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - refilledAt) * (double) rate / 1_000_000_000L);
+                refilledAt = now;
+                tokens -= bytes;
+                waitNanos = tokens < 0 ? (long) (-tokens * 1_000_000_000L / rate) : 0;
+            }
+            if (waitNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
     }
 
-    // ClientHandler class
-    class ChunkRequestHandler extends Thread
+    // serves one request read off a connection
+    class ChunkRequestHandler
     {
         private final DataInputStream in;
+        private final Protocol.FrameBuilder response;
         private final DataOutputStream out;
 
         // Constructor
-        ChunkRequestHandler(DataInputStream in, DataOutputStream out)
+        ChunkRequestHandler(DataInputStream in, Protocol.FrameBuilder response)
         {
             this.in = in;
-            this.out = out;
+            this.response = response;
+            this.out = response.data;
         }
 
-        @Override
-        public void run()
+        // null once answered, or a future for an answer that waits on another server
+        CompletableFuture<Void> handle(byte opcode) throws IOException
         {
-            try {
-                String verb = in.readUTF();
-                switch (verb) {
-                    case "write":
-                        handleWrite();
-                        break;
-                    case "read":
-                        handleRead();
-                        break;
-                    case "heartbeat":  // tell the controller we are still here
-                        out.writeBoolean(true);
-                        break;
-                    default:
-                        System.out.println("Invalid command received: " + verb);
-                        break;
-                }
-                this.in.close();
-                this.out.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            switch (opcode) {
+                case Protocol.WRITE:
+                    return handleWrite();
+                case Protocol.READ:
+                    return handleRead();
+                case Protocol.READ_RANGES:
+                    handleReadRanges();
+                    break;
+                case Protocol.PING:  // tell the controller we are still here
+                    out.writeBoolean(true);
+                    break;
+                default:
+                    throw new IOException("Invalid opcode received: " + opcode);
             }
-
+            return null;
         }
 
-        private void handleRead() throws IOException {
+        private CompletableFuture<Void> handleRead() throws IOException {
             String fileName;
-            byte[] fileContents;
             fileName = in.readUTF();
             int offset = in.readInt();
             int length = in.readInt();
+            if (chunks.containsKey(fileName) && Helper.useReplication) {
+                byte[] cached = chunkCache.get(fileName, offset, length);
+                if (cached != null) {
+                    out.writeInt(cached.length);
+                    out.write(cached);
+                    return null;
+                }
+            }
+            if (chunks.containsKey(fileName) && serveDirect(fileName, offset, length))
+                return null;
             if (chunks.containsKey(fileName)) {
+                long stamp = chunkCache.stamp();
                 FailureResult result = readChunk(fileName, offset, length);
                 if (!result.sliceFailureRanges.isEmpty()) {  //failure detected
                     System.out.println("failure detected for " + fileName);
-                    FailureResult recoverResult = getRecoveredChunk(fileName, result, offset, length);
-                    if (recoverResult != null && recoverResult.sliceFailureRanges.isEmpty())
-                        fileContents = recoverResult.contents;
-                    else {
-                        fileContents = null;
-                    }
-                } else {
-                    fileContents = result.contents;
-                }
-                //now respond to requester
-                if (fileContents == null) { // recovery failed
-                    out.writeInt(0);
-                    chunks.remove(fileName);
-                    Helper.processTaddle(controllerMachine, controllerPort, fileName, new ArrayList<>());
-                }
-                else {
-                    System.out.println("Serving file to client: " + fileName);
-                    out.writeInt(fileContents.length);
-                    out.write(fileContents);
+                    return CompletableFuture.runAsync(() -> {
+                        FailureResult recoverResult = getRecoveredChunk(fileName, result, offset, length);
+                        try {
+                            if (recoverResult != null && recoverResult.sliceFailureRanges.isEmpty())
+                                respondRead(fileName, offset, length, recoverResult.contents, stamp);
+                            else
+                                respondRead(fileName, offset, length, null, stamp);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, recoveryPool);
                 }
+                respondRead(fileName, offset, length, result.contents, stamp);
             } else {
                 out.writeInt(0);
             }
+            return null;
         }
 
-        private void handleWrite() throws IOException {
-            String fileName;
-            int fileSize;
-            byte[] fileContents = new byte[0];
-            boolean isForwarded = true;
-            boolean isWritten = true;
-            fileName = in.readUTF();
-            fileSize = in.readInt();  // likely 64k, but check anyway (could be last chunk)
+        private void respondRead(String fileName, int offset, int length, byte[] fileContents, long stamp)
+                throws IOException {
+            //now respond to requester
+            if (fileContents == null) { // recovery failed
+                out.writeInt(0);
+                discardChunk(fileName);
+            }
+            else {
+                if (offset == 0 && length == -1 && chunks.containsKey(fileName)) {  // checked end to end
+                    chunks.get(fileName).verifiedAt = System.nanoTime();
+                    if (Helper.useReplication)
+                        chunkCache.put(fileName, fileContents, stamp);
+                }
+                System.out.println("Serving file to client: " + fileName);
+                out.writeInt(fileContents.length);
+                out.write(fileContents);
+            }
+        }
+
+        /**
+         * Sends the range straight from the file to the socket, without copying it through the heap, when nothing
+         * needs checking: erasure shards carry no checksums, and a replica is trusted for Helper.verifyIntervalSeconds
+         * after a clean pass over the whole of it. Returns false if the verifying path has to serve the read instead.
+         */
+        private boolean serveDirect(String fileName, int offset, int length) throws IOException {
+            if (Helper.useReplication) {
+                Chunk chunk = chunks.get(fileName);
+                if (chunk == null || chunk.verifiedAt == 0
+                        || System.nanoTime() - chunk.verifiedAt > Helper.verifyIntervalSeconds * 1_000_000_000L)
+                    return false;
+            }
+            ChunkStore.Region region;
+            try {
+                region = store.locate(fileName, offset, length);
+            } catch (IOException e) {  // let the verifying path report and recover it
+                return false;
+            }
+            if (region == null)
+                return false;
+            out.writeInt((int) region.count);
+            response.attachFile(region.file, region.position, region.count);
+            directReads.incrementAndGet();
+            if (Helper.debug)
+                System.out.println("Serving file to client directly: " + fileName);
+            return true;
+        }
+
+        // one packet of a shard: forwarded downstream before it is written here, so the whole chain stores it at once.
+        // The answer waits for the next server's without holding a worker: chains can run through the same servers in
+        // opposite directions, and workers blocked on each other's forwards would leave none to take them
+        private CompletableFuture<Void> handleWrite() throws IOException {
+            String fileName = in.readUTF();
+            int offset = in.readInt();
             int numForwards = in.readInt();
             ArrayList<String> forwards = new ArrayList<>();
             for (int i = 0; i < numForwards; i++)
                 forwards.add(in.readUTF());
-            if (fileSize == 0) { // this signals we should have the file
+            int length = in.readInt();
+            if (length == 0) { // this signals we should have the file
                 FailureResult result = readChunk(fileName, 0, -1);
-                if (result.sliceFailureRanges.isEmpty())
-                    fileContents = result.contents;
-                else
-                    isWritten = false;
-            } else {
-                fileContents = new byte[fileSize];
-                in.readFully(fileContents);
-                isWritten = writeChunk(fileName, fileContents, 0);
+                boolean isWritten = result.sliceFailureRanges.isEmpty();
+                CompletableFuture<Boolean> forwarded = forwards.isEmpty() || !isWritten
+                        ? CompletableFuture.completedFuture(true)
+                        : Helper.writeToChunkServerWithForwardAsync(result.contents, fileName, forwards, chunkPort);
+                return forwarded.thenAccept(isForwarded -> answerWrite(isForwarded && isWritten));
             }
-            if (!forwards.isEmpty() && isWritten)
-                isForwarded = Helper.writeToChunkServerWithForward(
-                        fileContents, fileName, forwards, chunkPort);
-            out.writeBoolean(isForwarded && isWritten);
+            byte[] packet = new byte[length];
+            in.readFully(packet);
+            CompletableFuture<Boolean> forwarded = forwards.isEmpty()
+                    ? CompletableFuture.completedFuture(true)
+                    : Helper.writePacket(forwards.get(0), chunkPort, fileName, offset, packet, 0, length,
+                            forwards.subList(1, forwards.size()));
+            boolean isWritten = writeChunk(fileName, packet, offset, true);
+            // like the forward, the group commit is waited for without holding a worker
+            CompletableFuture<Boolean> durable = committer == null || !isWritten
+                    ? CompletableFuture.completedFuture(isWritten)
+                    : committer.commit(fileName).handle((v, e) -> e == null);
+            return forwarded.handle((isForwarded, e) -> {
+                if (e != null) {
+                    System.out.println("Forwarding " + fileName + " to " + forwards.get(0) + " failed: "
+                            + (e.getCause() == null ? e : e.getCause()).getMessage());
+                    return false;
+                }
+                return isForwarded;
+            }).thenAcceptBoth(durable, (isForwarded, isDurable) -> answerWrite(isForwarded && isDurable));
         }
 
-        private FailureResult getRecoveredChunk(String fileName, FailureResult result, int originalOffset, int originalLength) {
+        private void answerWrite(boolean isWritten) {
             try {
-                for (FailureResult.SliceFailureRange range : result.sliceFailureRanges) {
-                    String readServer = Helper.readFromController(
-                            controllerMachine, controllerPort, fileName, true, true);
-                    if (readServer == null)
-                        throw new IOException("Controller request denied.");
-                    if (Helper.debug)
-                        System.out.printf("Requesting slice/chunk from %s offset %d length %d%n",
-                                readServer, range.offset, range.length);
-                    byte[] recovered = Helper.readFromChunkServer(
-                            fileName, readServer, chunkPort, range.offset, range.length);
-                    writeChunk(fileName, recovered, range.offset);
-                }
-                return readChunk(fileName, originalOffset, originalLength);
+                out.writeBoolean(isWritten);
             } catch (IOException e) {
-                System.out.println("Recovery failed");
-                e.printStackTrace();
-                return null;
+                throw new UncheckedIOException(e);
             }
         }
 
-        private FailureResult readChunk(String fileName, int offset, int length) {
-            try {
-                String fullPath = Paths.get(Helper.chunkHome, fileName).toString();
-                FileInputStream fileInputStream = new FileInputStream(fullPath);
-                if (!Helper.useReplication)
-                    return new FailureResult(fileInputStream.readAllBytes());
-                byte[] contents;
-                System.out.printf("Reading file %s offset %d length %d%n", fileName, offset, length);
-                long skipped = fileInputStream.skip(offset);
-                if (skipped != offset)
-                    throw new IOException("Read failure");
-                if (length == -1) {
-                    contents = fileInputStream.readAllBytes();
-                } else
-                    contents = fileInputStream.readNBytes(length);
-                return validateChunk(fileName, contents, offset);
-            } catch (IOException | NoSuchAlgorithmException e) {
-                e.printStackTrace();
-                FailureResult result = new FailureResult(null);
-                if (Helper.useReplication)
-                    result.add(offset, length);
-                return result;
+        // verified copies of several ranges for a server repairing its replica; a damaged range here is left empty
+        // rather than recovered, so two bad replicas can't keep asking each other
+        private void handleReadRanges() throws IOException {
+            String fileName = in.readUTF();
+            int numRanges = in.readInt();
+            out.writeInt(numRanges);
+            for (int i = 0; i < numRanges; i++) {
+                int offset = in.readInt();
+                int length = in.readInt();
+                FailureResult result = chunks.containsKey(fileName) ? readChunk(fileName, offset, length) : null;
+                if (result == null || result.contents == null || !result.sliceFailureRanges.isEmpty()) {
+                    out.writeInt(0);
+                } else {
+                    out.writeInt(result.contents.length);
+                    out.write(result.contents);
+                }
             }
         }
+    }
 
-        private FailureResult validateChunk(
-                String fileName, byte[] contents, int offset) throws IOException, NoSuchAlgorithmException {
-            FailureResult result = new FailureResult(contents);
-            File file = new File(Paths.get(Helper.chunkHome, fileName).toString());
-            FileInputStream hashInputStream = new FileInputStream(file.getPath() + ".sha1");
-            byte[] hashes = hashInputStream.readAllBytes();
-
-            int numSlices = contents.length / Helper.BpSlice;
-            // if we have extra data beyond the last full 8KB slice, consider it a new slice
-            if (contents.length % Helper.BpSlice > 0) {
-                numSlices++;
+    // drops a shard that couldn't be recovered and tells the controller this server no longer holds it. A replica goes
+    // only once the controller confirms another server holds it: if the controller can't be asked, or this is the last
+    // copy, the damaged replica is kept (most of it may still be good) and reported as held again, since trying to
+    // repair it took this server off the controller's list of holders. An erasure-coded shard never has another
+    // holder, its backup is the parity, so it is always dropped and the client redisperses the chunk
+    private void discardChunk(String fileName) throws IOException {
+        if (Helper.useReplication) {
+            ArrayList<String> others;
+            try {
+                others = Helper.replicasFromController(controllerMachine, controllerPort, fileName, false);
+            } catch (IOException e) {
+                others = new ArrayList<>();
+            }
+            if (others.isEmpty()) {
+                System.out.println("Keeping damaged " + fileName + ": no other replica is known to hold it");
+                Chunk chunk = chunks.get(fileName);
+                if (chunk != null)
+                    index.put(chunk);
+                return;
             }
+        }
+        index.remove(fileName);
+        checksums.invalidate(fileName);
+        chunkCache.invalidate(fileName);
+        store.delete(fileName);
+        Helper.processTaddle(controllerMachine, controllerPort, fileName, new ArrayList<>());
+    }
 
-            int hashOffset = (offset / Helper.BpSlice) * Helper.BpHash;
-            for (int i = 0; i < numSlices; i++) {
-                int hashStart = hashOffset + (i*Helper.BpHash);
-                int hashEnd = hashStart+Helper.BpHash;
-                int sliceStart = i*Helper.BpSlice;
-                int sliceEnd = Integer.min(sliceStart+Helper.BpSlice, contents.length);
-                if (hashEnd > hashes.length) { // no more hashes, but more slices
-                    result.add(sliceStart, -1);
-                    break;
+    /**
+     * Repairs every damaged range at once: one controller call for the other holders, then the ranges dealt out
+     * among them and fetched with one READ_RANGES request per holder, all in parallel. A range a holder couldn't
+     * supply moves on to the next holder. The repaired ranges are then written in offset order, adjacent ones as
+     * a single write.
+     */
+    private FailureResult getRecoveredChunk(String fileName, FailureResult result, int originalOffset, int originalLength) {
+        try {
+            ArrayList<String> replicas = Helper.replicasFromController(
+                    controllerMachine, controllerPort, fileName, true);
+            if (replicas.isEmpty())
+                throw new IOException("No other replica of " + fileName);
+            ArrayList<FailureResult.SliceFailureRange> ranges = result.sliceFailureRanges;
+            byte[][] recovered = new byte[ranges.size()][];
+            int missing = ranges.size();
+            for (int attempt = 0; attempt < replicas.size() && missing > 0; attempt++) {
+                HashMap<String, ArrayList<Integer>> assigned = new HashMap<>();
+                for (int i = 0; i < ranges.size(); i++) {
+                    if (recovered[i] == null)
+                        assigned.computeIfAbsent(replicas.get((i + attempt) % replicas.size()),
+                                replica -> new ArrayList<>()).add(i);
                 }
-
-                byte[] oldHash = Arrays.copyOfRange(hashes, hashStart, hashEnd);
-                byte[] slice = Arrays.copyOfRange(contents, sliceStart, sliceEnd);
-                byte[] newHash = Helper.getSHA1(slice);
-                if (!Arrays.equals(oldHash, newHash)) {
-                    if (sliceEnd == contents.length)
-                        result.add(sliceStart, -1);
-                    else
-                        result.add(sliceStart, sliceEnd-sliceStart);
+                HashMap<String, CompletableFuture<byte[][]>> fetches = new HashMap<>();
+                for (Map.Entry<String, ArrayList<Integer>> entry : assigned.entrySet()) {
+                    ArrayList<Integer> indices = entry.getValue();
+                    int[] offsets = new int[indices.size()];
+                    int[] lengths = new int[indices.size()];
+                    for (int j = 0; j < indices.size(); j++) {
+                        offsets[j] = ranges.get(indices.get(j)).offset;
+                        lengths[j] = ranges.get(indices.get(j)).length;
+                    }
+                    if (Helper.debug)
+                        System.out.printf("Requesting %d slice ranges of %s from %s%n",
+                                indices.size(), fileName, entry.getKey());
+                    fetches.put(entry.getKey(), Helper.readRangesFromChunkServer(
+                            fileName, entry.getKey(), chunkPort, offsets, lengths));
                 }
+                for (Map.Entry<String, CompletableFuture<byte[][]>> fetch : fetches.entrySet()) {
+                    ArrayList<Integer> indices = assigned.get(fetch.getKey());
+                    try {
+                        byte[][] contents = fetch.getValue().join();
+                        for (int j = 0; j < indices.size() && j < contents.length; j++) {
+                            if (contents[j] != null) {
+                                recovered[indices.get(j)] = contents[j];
+                                missing--;
+                            }
+                        }
+                    } catch (CompletionException e) {
+                        System.out.println("Couldn't fetch slices of " + fileName + " from " + fetch.getKey()
+                                + ": " + e.getCause().getMessage());
+                    }
+                }
+            }
+            if (missing > 0)
+                throw new IOException(missing + " damaged ranges of " + fileName + " have no good copy");
+            recoveredRanges.addAndGet(ranges.size());
+            writeRecovered(fileName, ranges, recovered);
+            // asking for the other holders took this server off the controller's list; the next delta puts it back
+            Chunk chunk = chunks.get(fileName);
+            if (chunk != null)
+                index.put(chunk);
+            return readChunk(fileName, originalOffset, originalLength);
+        } catch (IOException e) {
+            System.out.println("Recovery failed");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeRecovered(String fileName, ArrayList<FailureResult.SliceFailureRange> ranges,
+                                byte[][] recovered) throws IOException {
+        Integer[] order = new Integer[ranges.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> ranges.get(i).offset));
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        int runOffset = 0;
+        for (int k = 0; k <= order.length; k++) {
+            if (k < order.length && run.size() > 0 && ranges.get(order[k]).offset == runOffset + run.size()) {
+                run.write(recovered[order[k]]);
+                continue;
+            }
+            if (run.size() > 0 && !writeChunk(fileName, run.toByteArray(), runOffset, false))
+                throw new IOException("Couldn't write recovered slices of " + fileName);
+            if (k < order.length) {
+                run.reset();
+                runOffset = ranges.get(order[k]).offset;
+                run.write(recovered[order[k]]);
             }
+        }
+        // this runs on the recovery pool, where waiting for the batch holds up no request
+        if (committer != null && committer.commit(fileName).handle((v, e) -> e != null).join())
+            throw new IOException("Recovered slices of " + fileName + " could not be made durable");
+    }
+
+    private FailureResult readChunk(String fileName, int offset, int length) {
+        try {
+            if (!Helper.useReplication)
+                return new FailureResult(store.read(fileName, 0, -1));
+            System.out.printf("Reading file %s offset %d length %d%n", fileName, offset, length);
+            byte[] contents = store.read(fileName, offset, length);
+            return validateChunk(fileName, contents, offset);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            FailureResult result = new FailureResult(null);
+            if (Helper.useReplication)
+                result.add(offset, length);
             return result;
         }
+    }
 
-        private boolean writeChunk(String fileName, byte[] contents, int slicesOffset) {
-            try {
-                Path chunkHome = Paths.get(Helper.chunkHome);
-                if (Files.notExists(chunkHome))
-                    Files.createDirectories(chunkHome);
-
-                File file = new File(Paths.get(Helper.chunkHome, fileName).toString());
-                synchronized (chunks) {
-                    if (file.exists() && chunks.containsKey(fileName)) {
-                        Chunk chunk = chunks.get(fileName);
-                        if (slicesOffset == 0) //an update, not a recovery
-                            chunk.version++;
-                        chunk.isNew = true;
-                    } else {
-                        Chunk chunk = new Chunk();
-                        chunk.fileName = fileName;
-                        chunk.version = 1;
-                        String[] splits = fileName.split("\\.");
-                        chunk.sequence = Integer.parseInt(splits[splits.length - 2]);
-                        chunks.put(fileName, chunk);
-                    }
-                }
+    private FailureResult validateChunk(
+            String fileName, byte[] contents, int offset) throws IOException, NoSuchAlgorithmException {
+        FailureResult result = new FailureResult(contents);
+        byte[] hashes = checksums.get(fileName);
 
-                if (Helper.useReplication) {
-                    if (slicesOffset % Helper.BpSlice != 0)  //we don't write partial slices
-                        return false;
+        int numSlices = contents.length / Helper.BpSlice;
+        // if we have extra data beyond the last full 8KB slice, consider it a new slice
+        if (contents.length % Helper.BpSlice > 0) {
+            numSlices++;
+        }
 
-                    int numSlicesOffset = slicesOffset / Helper.BpSlice;
-                    int numSlices = contents.length / Helper.BpSlice;
-                    //we write whole hashes even when chunks are smaller than 64KB, above integer divide would round down
-                    if (contents.length % Helper.BpSlice != 0)
-                        numSlices++;
+        int hashOffset = (offset / Helper.BpSlice) * Helper.BpHash;
+        for (int i = 0; i < numSlices; i++) {
+            int hashStart = hashOffset + (i*Helper.BpHash);
+            int hashEnd = hashStart+Helper.BpHash;
+            int sliceStart = i*Helper.BpSlice;
+            int sliceEnd = Integer.min(sliceStart+Helper.BpSlice, contents.length);
+            if (hashEnd > hashes.length) { // no more hashes, but more slices
+                result.add(offset + sliceStart, -1);
+                break;
+            }
 
-                    int hashesOffset = numSlicesOffset * Helper.BpHash;
+            byte[] oldHash = Arrays.copyOfRange(hashes, hashStart, hashEnd);
+            byte[] slice = Arrays.copyOfRange(contents, sliceStart, sliceEnd);
+            byte[] newHash = Helper.getSHA1(slice);
+            if (!Arrays.equals(oldHash, newHash)) {
+                if (sliceEnd == contents.length)
+                    result.add(offset + sliceStart, -1);
+                else
+                    result.add(offset + sliceStart, sliceEnd-sliceStart);
+            }
+        }
+        return result;
+    }
 
-                    byte[] hashes = new byte[numSlices * Helper.BpHash];
-                    for (int i = 0; i < numSlices; i++) {
-                        int sliceStart = i * Helper.BpSlice;
-                        int sliceEnd = Integer.min(sliceStart + Helper.BpSlice, contents.length);
-                        byte[] hash = Helper.getSHA1(Arrays.copyOfRange(contents, sliceStart, sliceEnd));
-                        System.arraycopy(hash, 0, hashes, i * Helper.BpHash, hash.length);
+    // isUpdate: new contents from a client, rather than a repair of what this replica already had
+    private boolean writeChunk(String fileName, byte[] contents, int slicesOffset, boolean isUpdate) {
+        try {
+            synchronized (chunks) {
+                // packets of one write can land in any order, so only the one at offset 0 counts as a version
+                if (chunks.containsKey(fileName)) {
+                    Chunk chunk = chunks.get(fileName);
+                    if (slicesOffset == 0 && isUpdate) {
+                        chunk.version++;
+                        index.put(chunk);
                     }
+                    chunk.writtenAt = System.nanoTime();
+                } else {
+                    Chunk chunk = new Chunk();
+                    chunk.fileName = fileName;
+                    chunk.version = slicesOffset == 0 && isUpdate ? 1 : 0;
+                    chunk.sequence = ChunkIndex.sequenceOf(fileName);
+                    chunk.writtenAt = System.nanoTime();
+                    index.put(chunk);
+                }
+            }
 
-                    RandomAccessFile hashStream = new RandomAccessFile(file.getPath() + ".sha1", "rw");
-                    hashStream.seek(hashesOffset);
-                    hashStream.write(hashes);
+            if (Helper.useReplication) {
+                if (slicesOffset % Helper.BpSlice != 0)  //we don't write partial slices
+                    return false;
+
+                int numSlicesOffset = slicesOffset / Helper.BpSlice;
+                int numSlices = contents.length / Helper.BpSlice;
+                //we write whole hashes even when chunks are smaller than 64KB, above integer divide would round down
+                if (contents.length % Helper.BpSlice != 0)
+                    numSlices++;
+
+                int hashesOffset = numSlicesOffset * Helper.BpHash;
+
+                byte[] hashes = new byte[numSlices * Helper.BpHash];
+                for (int i = 0; i < numSlices; i++) {
+                    int sliceStart = i * Helper.BpSlice;
+                    int sliceEnd = Integer.min(sliceStart + Helper.BpSlice, contents.length);
+                    byte[] hash = Helper.getSHA1(Arrays.copyOfRange(contents, sliceStart, sliceEnd));
+                    System.arraycopy(hash, 0, hashes, i * Helper.BpHash, hash.length);
                 }
-                RandomAccessFile chunkStream = new RandomAccessFile(file.getPath(), "rw");
-                chunkStream.seek(slicesOffset);
-                chunkStream.write(contents);
-                //needHeartbeat = true;
-                return true;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+
+                store.writeHashes(fileName, hashesOffset, hashes);
+                checksums.update(fileName, hashesOffset, hashes);
+            }
+            try {
+                store.write(fileName, slicesOffset, contents);
+            } finally {  // only once the new contents are down, so a read that started earlier can't recache the old
+                chunkCache.invalidate(fileName);
             }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
         }
     }
 }
@@ -0,0 +1,64 @@
+package com.cs555.a1.chunkserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+/**
+ * Where a chunk server keeps shard contents and their slice hashes. Offsets are within the shard; writing past the
+ * end grows it, and nothing ever shrinks it short of delete.
+ */
+interface ChunkStore {
+    // bytes of a chunk laid out contiguously in a file, for sending with transferTo; the channel is the caller's
+    class Region {
+        final FileChannel file;
+        final long position;
+        final long count;
+
+        Region(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+    }
+
+    static ChunkStore open(String engine) throws IOException {
+        switch (engine) {
+            case "file":
+                return new FileChunkStore();
+            case "segment":
+                return new SegmentChunkStore();
+            case "mapped":
+                return new MappedChunkStore();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+    }
+
+    void write(String fileName, int offset, byte[] contents) throws IOException;
+
+    void writeHashes(String fileName, int offset, byte[] hashes) throws IOException;
+
+    // bytes [offset, offset + length) of the chunk, or to its end if length is -1; fails if offset is past the end
+    byte[] read(String fileName, int offset, int length) throws IOException;
+
+    byte[] readHashes(String fileName) throws IOException;
+
+    // the same range as read, or null if it isn't stored in one piece or the chunk is missing
+    Region locate(String fileName, int offset, int length) throws IOException;
+
+    void delete(String fileName) throws IOException;
+
+    // names of all shards held, for rebuilding the chunk index
+    Collection<String> list() throws IOException;
+
+    // forces everything written so far to the given chunks, data and hashes, onto disk
+    void sync(Collection<String> fileNames) throws IOException;
+
+    // how many bytes a read of [offset, offset + length) gets from a chunk of the given size
+    static int readLength(long size, int offset, int length) throws IOException {
+        if (offset > size)
+            throw new IOException("Read failure");
+        return (int) (length == -1 ? size - offset : Long.min(length, size - offset));
+    }
+}
@@ -0,0 +1,115 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * One file per shard under Helper.chunkHome, named after the shard, with its slice hashes in a .sha1 file beside it.
+ */
+class FileChunkStore implements ChunkStore {
+    FileChunkStore() throws IOException {
+        Files.createDirectories(Paths.get(Helper.chunkHome));
+    }
+
+    @Override
+    public void write(String fileName, int offset, byte[] contents) throws IOException {
+        writeAt(path(fileName), offset, contents);
+    }
+
+    @Override
+    public void writeHashes(String fileName, int offset, byte[] hashes) throws IOException {
+        writeAt(hashPath(fileName), offset, hashes);
+    }
+
+    @Override
+    public byte[] read(String fileName, int offset, int length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path(fileName).toFile(), "r")) {
+            byte[] contents = new byte[ChunkStore.readLength(file.length(), offset, length)];
+            file.seek(offset);
+            file.readFully(contents);
+            return contents;
+        }
+    }
+
+    @Override
+    public byte[] readHashes(String fileName) throws IOException {
+        return Files.readAllBytes(hashPath(fileName));
+    }
+
+    @Override
+    public Region locate(String fileName, int offset, int length) throws IOException {
+        FileChannel file;
+        try {
+            file = FileChannel.open(path(fileName), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            return new Region(file, offset, ChunkStore.readLength(file.size(), offset, length));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        Files.deleteIfExists(path(fileName));
+        Files.deleteIfExists(hashPath(fileName));
+    }
+
+    @Override
+    public Collection<String> list() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(Helper.chunkHome))) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .filter(name -> !name.endsWith(".sha1"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            force(path(fileName));
+            force(hashPath(fileName));
+        }
+        try {  // new files need their directory entries on disk too
+            force(Paths.get(Helper.chunkHome));
+        } catch (IOException ignored) {  // not every platform can open a directory
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException ignored) {  // replication only: erasure shards have no hash file
+        }
+    }
+
+    static Path path(String fileName) {
+        return Paths.get(Helper.chunkHome, fileName);
+    }
+
+    static Path hashPath(String fileName) {
+        return Paths.get(Helper.chunkHome, fileName + ".sha1");
+    }
+
+    private static void writeAt(Path path, int offset, byte[] contents) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(offset);
+            file.write(contents);
+        }
+    }
+}
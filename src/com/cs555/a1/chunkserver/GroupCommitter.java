@@ -0,0 +1,114 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes acknowledged writes durable without an fsync each. Writers hand over the shard they just wrote and get a
+ * future back rather than waiting, so a batch isn't limited to the number of threads that can sit in it; one thread
+ * gathers everything that arrives within Helper.groupCommitMillis of the first write of a batch, forces it to disk with
+ * a single ChunkStore.sync, along with the chunk index journal, and then completes all of its futures. Writes arriving
+ * while a batch is being forced go into the next one, so under load batches grow by themselves. Should that thread
+ * ever stop, every write waiting on it and every later one fails instead of waiting for good.
+ */
+class GroupCommitter {
+    private final ChunkStore store;
+    private final ChunkIndex index;
+    private HashSet<String> batch = new HashSet<>();  // guarded by this
+    private ArrayList<CompletableFuture<Void>> waiters = new ArrayList<>();  // guarded by this
+    private long batchStarted;  // guarded by this
+    private boolean stopped = false;  // guarded by this
+    private final AtomicLong batches = Metrics.counter("groupCommit.batches");
+    private final AtomicLong writes = Metrics.counter("groupCommit.writes");
+    private final AtomicLong syncMicros = Metrics.counter("groupCommit.syncMicros");
+    private final AtomicLong waitMicros = Metrics.counter("groupCommit.waitMicros");
+    private final AtomicLong failures = Metrics.counter("groupCommit.failures");
+
+    GroupCommitter(ChunkStore store, ChunkIndex index) {
+        this.store = store;
+        this.index = index;
+        Thread committer = new Thread(this::run, "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // completes once everything written so far to the shard is on disk, exceptionally if forcing it failed
+    CompletableFuture<Void> commit(String fileName) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (this) {
+            if (stopped)
+                return CompletableFuture.failedFuture(new IOException("Group committer has stopped"));
+            if (waiters.isEmpty()) {
+                batchStarted = start;
+                notifyAll();
+            }
+            batch.add(fileName);
+            waiters.add(durable);
+        }
+        writes.incrementAndGet();
+        return durable.whenComplete((v, e) -> {
+            waitMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            if (e != null)
+                System.out.println("Write of " + fileName + " could not be made durable: " + e);
+        });
+    }
+
+    private void run() {
+        try {
+            commitBatches();
+        } finally {
+            ArrayList<CompletableFuture<Void>> abandoned;
+            synchronized (this) {
+                stopped = true;
+                abandoned = waiters;
+                waiters = new ArrayList<>();
+            }
+            for (CompletableFuture<Void> waiter : abandoned)
+                waiter.completeExceptionally(new IOException("Group committer has stopped"));
+        }
+    }
+
+    private void commitBatches() {
+        while (true) {
+            HashSet<String> names;
+            ArrayList<CompletableFuture<Void>> released;
+            synchronized (this) {
+                try {
+                    while (waiters.isEmpty())
+                        wait();
+                    // let the batch fill until the oldest write in it has used up the latency budget
+                    long deadline = batchStarted + TimeUnit.MILLISECONDS.toNanos(Helper.groupCommitMillis);
+                    for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime())
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                names = batch;
+                released = waiters;
+                batch = new HashSet<>();
+                waiters = new ArrayList<>();
+            }
+            long start = System.nanoTime();
+            try {
+                store.sync(names);
+                index.sync();  // new chunks and versions have to survive along with their data
+                for (CompletableFuture<Void> waiter : released)
+                    waiter.complete(null);
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                for (CompletableFuture<Void> waiter : released)
+                    waiter.completeExceptionally(e);
+            }
+            syncMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            batches.incrementAndGet();
+        }
+    }
+}
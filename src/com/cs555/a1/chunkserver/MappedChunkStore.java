@@ -0,0 +1,235 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Metrics;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The file store's layout, with shard and hash files kept memory-mapped so reads and writes at an offset are plain
+ * memory copies instead of an open, seek and read or write each time. At most Helper.maxMappedFiles files stay
+ * mapped, least recently used first out; evicted and deleted files are unmapped at once rather than whenever the
+ * collector gets to them, so address space and the files behind it are released promptly. Syncing forces the live
+ * mappings themselves, and with Helper.syncWrites a mapping is forced before it is unmapped, since an fsync through
+ * some other channel is only sure to reach mapped writes where the page cache is unified, as on Linux.
+ */
+class MappedChunkStore extends FileChunkStore {
+    // a file's mapping; copies hold the read lock so the buffer can't be unmapped or replaced under them
+    private static class Mapping {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        MappedByteBuffer buffer;  // null once unmapped
+    }
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Can't unmap files explicitly, leaving it to the garbage collector: " + e);
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = cleaner;
+    }
+
+    private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong unmapped = Metrics.counter("mapped.unmapped");
+
+    MappedChunkStore() throws IOException {
+        Metrics.gauge("mapped.files", this::mappedFiles);
+    }
+
+    @Override
+    public void write(String fileName, int offset, byte[] contents) throws IOException {
+        putAt(path(fileName), offset, contents);
+    }
+
+    @Override
+    public void writeHashes(String fileName, int offset, byte[] hashes) throws IOException {
+        putAt(hashPath(fileName), offset, hashes);
+    }
+
+    @Override
+    public byte[] read(String fileName, int offset, int length) throws IOException {
+        return getAt(path(fileName), offset, length);
+    }
+
+    @Override
+    public byte[] readHashes(String fileName) throws IOException {
+        return getAt(hashPath(fileName), 0, -1);
+    }
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        release(path(fileName));
+        release(hashPath(fileName));
+        super.delete(fileName);
+    }
+
+    @Override
+    public void sync(Collection<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            forceMapped(path(fileName));
+            forceMapped(hashPath(fileName));
+        }
+        super.sync(fileNames);  // the files' sizes, which growing them changed, and their directory entries
+    }
+
+    private void forceMapped(Path path) {
+        Mapping mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(path);
+        }
+        if (mapping == null)
+            return;
+        mapping.lock.readLock().lock();
+        try {
+            if (mapping.buffer != null)
+                mapping.buffer.force();
+        } finally {
+            mapping.lock.readLock().unlock();
+        }
+    }
+
+    private byte[] getAt(Path path, int offset, int length) throws IOException {
+        while (true) {
+            Mapping mapping = mapping(path, false);
+            mapping.lock.readLock().lock();
+            try {
+                if (mapping.buffer == null)  // unmapped since we looked it up
+                    continue;
+                byte[] contents = new byte[ChunkStore.readLength(mapping.buffer.capacity(), offset, length)];
+                mapping.buffer.duplicate().position(offset).get(contents);
+                return contents;
+            } finally {
+                mapping.lock.readLock().unlock();
+            }
+        }
+    }
+
+    private void putAt(Path path, int offset, byte[] contents) throws IOException {
+        while (true) {
+            Mapping mapping = mapping(path, true);
+            mapping.lock.readLock().lock();
+            try {
+                if (mapping.buffer == null)
+                    continue;
+                if (offset + contents.length <= mapping.buffer.capacity()) {
+                    mapping.buffer.duplicate().position(offset).put(contents);
+                    return;
+                }
+            } finally {
+                mapping.lock.readLock().unlock();
+            }
+            grow(path, mapping, offset + contents.length);
+        }
+    }
+
+    // remaps the file at the new size, which extends it
+    private void grow(Path path, Mapping mapping, int size) throws IOException {
+        mapping.lock.writeLock().lock();
+        try {
+            if (mapping.buffer == null || mapping.buffer.capacity() >= size)
+                return;
+            MappedByteBuffer old = mapping.buffer;
+            mapping.buffer = map(path, size, false);
+            if (Helper.syncWrites)
+                old.force();
+            unmap(old);
+        } finally {
+            mapping.lock.writeLock().unlock();
+        }
+    }
+
+    private Mapping mapping(Path path, boolean create) throws IOException {
+        ArrayList<Mapping> evicted = new ArrayList<>();
+        Mapping mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(path);
+            if (mapping == null) {
+                mapping = new Mapping();
+                mapping.buffer = map(path, -1, create);
+                mappings.put(path, mapping);
+                Iterator<Map.Entry<Path, Mapping>> eldest = mappings.entrySet().iterator();
+                while (mappings.size() > Helper.maxMappedFiles) {
+                    evicted.add(eldest.next().getValue());
+                    eldest.remove();
+                }
+            }
+        }
+        for (Mapping victim : evicted)
+            close(victim, Helper.syncWrites);
+        return mapping;
+    }
+
+    private void release(Path path) {
+        Mapping mapping;
+        synchronized (mappings) {
+            mapping = mappings.remove(path);
+        }
+        if (mapping != null)
+            close(mapping, false);
+    }
+
+    // force: write the mapped pages out first, for a file that stays
+    private void close(Mapping mapping, boolean force) {
+        mapping.lock.writeLock().lock();
+        try {
+            if (mapping.buffer != null) {
+                if (force)
+                    mapping.buffer.force();
+                unmap(mapping.buffer);
+            }
+            mapping.buffer = null;
+        } finally {
+            mapping.lock.writeLock().unlock();
+        }
+    }
+
+    private int mappedFiles() {
+        synchronized (mappings) {
+            return mappings.size();
+        }
+    }
+
+    // maps the whole file, or size bytes of it, growing it to fit; the mapping outlives the channel
+    private static MappedByteBuffer map(Path path, long size, boolean create) throws IOException {
+        try (FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size < 0 ? channel.size() : size);
+        }
+    }
+
+    private void unmap(MappedByteBuffer buffer) {
+        if (invokeCleaner == null)
+            return;
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+            unmapped.incrementAndGet();
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Failed to unmap: " + e);
+        }
+    }
+}
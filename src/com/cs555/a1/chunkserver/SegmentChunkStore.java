@@ -0,0 +1,455 @@
+package com.cs555.a1.chunkserver;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured store: every write is appended as a record to the active segment file under chunkHome/segments,
+ * and an in-memory index maps each shard to the extents that make it up. A new extent cuts back whatever older ones
+ * it overlaps, so the extents of a shard never overlap and hold only bytes that still show through.
+ * Thousands of small shards so cost a handful of large files and sequential writes instead of two files each.
+ *
+ * A record is: byte kind, short name length, name (UTF-8), int offset in the shard, int length, then the bytes. A
+ * delete appends a tombstone. On startup the index is rebuilt by replaying the segments in order, cutting off a
+ * record torn by a crash. Segments roll over at Helper.segmentBytes; a background pass copies the live shards out
+ * of mostly dead segments into the active one and deletes them.
+ */
+class SegmentChunkStore implements ChunkStore {
+    private static final byte DATA = 1;
+    private static final byte HASHES = 2;
+    private static final byte DELETE = 3;
+    private static final double COMPACT_BELOW = 0.5;  // sealed segments with less of their bytes live get compacted
+    private static final int COMPACTION_SECONDS = 30;
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        boolean hasTombstones;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private static class Extent {
+        final Segment segment;
+        final long position;  // of the bytes in the segment
+        final int offset;  // in the shard
+        final int length;
+
+        Extent(Segment segment, long position, int offset, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Entry {
+        final ArrayList<Extent> data = new ArrayList<>();
+        final ArrayList<Extent> hashes = new ArrayList<>();
+        int dataLength;
+        int hashesLength;
+    }
+
+    private final Path directory;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final HashMap<String, Entry> index = new HashMap<>();
+    // reads hold it shared; appends, index changes and dropping segments hold it exclusively
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Segment active;
+    private final HashSet<Segment> unsynced = new HashSet<>();  // segments appended to since they were last forced
+    private final AtomicLong compactedBytes = Metrics.counter("segments.compactedBytes");
+
+    SegmentChunkStore() throws IOException {
+        directory = Paths.get(Helper.chunkHome, "segments");
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length() - ".seg".length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        for (Segment segment : segments.values())
+            replay(segment);
+        roll();
+        Metrics.gauge("segments.count", () -> {
+            lock.readLock().lock();
+            try {
+                return segments.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.out.println("Segment compaction failed");
+                e.printStackTrace();
+            }
+        }, COMPACTION_SECONDS, COMPACTION_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void write(String fileName, int offset, byte[] contents) throws IOException {
+        append(DATA, fileName, offset, contents);
+    }
+
+    @Override
+    public void writeHashes(String fileName, int offset, byte[] hashes) throws IOException {
+        append(HASHES, fileName, offset, hashes);
+    }
+
+    @Override
+    public byte[] read(String fileName, int offset, int length) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = get(fileName);
+            byte[] contents = new byte[ChunkStore.readLength(entry.dataLength, offset, length)];
+            assemble(entry.data, offset, contents);
+            return contents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] readHashes(String fileName) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = get(fileName);
+            byte[] hashes = new byte[entry.hashesLength];
+            assemble(entry.hashes, 0, hashes);
+            return hashes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Region locate(String fileName, int offset, int length) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(fileName);
+            if (entry == null)
+                return null;
+            int count = ChunkStore.readLength(entry.dataLength, offset, length);
+            if (count == 0)
+                return null;
+            // one extent has to hold all of the range, or it is in pieces
+            for (Extent extent : entry.data) {
+                if (extent.offset <= offset && offset + count <= extent.offset + extent.length) {
+                    FileChannel file = FileChannel.open(extent.segment.path, StandardOpenOption.READ);
+                    return new Region(file, extent.position + offset - extent.offset, count);
+                }
+                if (extent.offset < offset + count && offset < extent.offset + extent.length)
+                    return null;
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.remove(fileName) != null) {
+                appendRecord(DELETE, fileName, 0, new byte[0]);
+                active.hasTombstones = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> list() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // one force per segment written since the last sync, whichever chunks the writes were for
+    @Override
+    public void sync(Collection<String> fileNames) throws IOException {
+        ArrayList<Segment> toForce;
+        lock.writeLock().lock();
+        try {
+            toForce = new ArrayList<>(unsynced);
+            unsynced.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Segment segment : toForce) {
+            try {
+                segment.channel.force(false);
+            } catch (ClosedChannelException e) {  // compacted meanwhile: its live records now sit in the active segment
+                Segment current;
+                lock.readLock().lock();
+                try {
+                    current = active;
+                } finally {
+                    lock.readLock().unlock();
+                }
+                current.channel.force(false);
+            }
+        }
+    }
+
+    private Entry get(String fileName) throws NoSuchFileException {
+        Entry entry = index.get(fileName);
+        if (entry == null)
+            throw new NoSuchFileException(fileName);
+        return entry;
+    }
+
+    private void append(byte kind, String fileName, int offset, byte[] bytes) throws IOException {
+        lock.writeLock().lock();
+        try {
+            apply(kind, fileName, appendRecord(kind, fileName, offset, bytes));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // writes one record at the end of the active segment and returns where its bytes went; needs the write lock
+    private Extent appendRecord(byte kind, String fileName, int offset, byte[] bytes) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + name.length + 8 + bytes.length);
+        record.put(kind).putShort((short) name.length).put(name).putInt(offset).putInt(bytes.length).put(bytes);
+        record.flip();
+        if (active.size > 0 && active.size + record.limit() > Helper.segmentBytes)
+            roll();
+        long start = active.size;
+        while (record.hasRemaining())
+            active.channel.write(record, start + record.position());
+        active.size += record.limit();
+        unsynced.add(active);
+        return new Extent(active, active.size - bytes.length, offset, bytes.length);
+    }
+
+    private void apply(byte kind, String fileName, Extent extent) {
+        if (kind == DELETE) {
+            index.remove(fileName);
+            return;
+        }
+        Entry entry = index.computeIfAbsent(fileName, k -> new Entry());
+        if (kind == DATA) {
+            overlay(entry.data, extent);
+            entry.dataLength = Integer.max(entry.dataLength, extent.offset + extent.length);
+        } else {
+            overlay(entry.hashes, extent);
+            entry.hashesLength = Integer.max(entry.hashesLength, extent.offset + extent.length);
+        }
+    }
+
+    // adds the extent, trimming or splitting the ones it covers; an empty extent is kept only while it's the only one,
+    // so an empty shard still has a record to copy when compacted
+    private static void overlay(ArrayList<Extent> extents, Extent newer) {
+        int start = newer.offset;
+        int end = newer.offset + newer.length;
+        for (int i = extents.size() - 1; i >= 0; i--) {
+            Extent older = extents.get(i);
+            int olderEnd = older.offset + older.length;
+            if (older.length == 0) {
+                if (newer.length > 0)
+                    extents.remove(i);
+                continue;
+            }
+            if (olderEnd <= start || end <= older.offset)
+                continue;
+            extents.remove(i);
+            if (older.offset < start)
+                extents.add(new Extent(older.segment, older.position, older.offset, start - older.offset));
+            if (end < olderEnd)
+                extents.add(new Extent(older.segment, older.position + end - older.offset, end, olderEnd - end));
+        }
+        if (newer.length > 0 || extents.isEmpty())
+            extents.add(newer);
+    }
+
+    // fills out with the shard's bytes from offset on; the extents don't overlap, so order doesn't matter
+    private static void assemble(ArrayList<Extent> extents, int offset, byte[] out) throws IOException {
+        for (Extent extent : extents) {
+            int start = Integer.max(extent.offset, offset);
+            int end = Integer.min(extent.offset + extent.length, offset + out.length);
+            if (start >= end)
+                continue;
+            ByteBuffer target = ByteBuffer.wrap(out, start - offset, end - start);
+            long position = extent.position + start - extent.offset;
+            while (target.hasRemaining()) {
+                if (extent.segment.channel.read(target, position + target.position() - (start - offset)) < 0)
+                    throw new EOFException("Segment " + extent.segment.id + " cut short");
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        active = new Segment(id, directory.resolve(String.format("%08d.seg", id)));
+        segments.put(id, active);
+        forceDirectory();  // so the new file survives a crash
+    }
+
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {  // not every platform can open a directory
+        }
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+            while (true) {
+                byte kind = in.readByte();
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                int offset = in.readInt();
+                int length = in.readInt();
+                long dataPosition = position + 1 + 2 + name.length + 8;
+                if (kind < DATA || kind > DELETE || length < 0 || dataPosition + length > segment.size)
+                    break;
+                in.skipNBytes(length);
+                String fileName = new String(name, StandardCharsets.UTF_8);
+                if (kind == DELETE)
+                    segment.hasTombstones = true;
+                apply(kind, fileName, new Extent(segment, dataPosition, offset, length));
+                position = dataPosition + length;
+            }
+        } catch (EOFException ignored) {  // a record torn by a crash, or simply the end
+        }
+        if (position < segment.size) {
+            System.out.println("Dropping " + (segment.size - position) + " torn bytes from segment " + segment.id);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    /**
+     * Rewrites every shard with an extent in a mostly dead sealed segment as one fresh extent in the active segment,
+     * then deletes those segments. A segment holding tombstones is only dropped along with every older segment, since
+     * the data a tombstone deletes could be in any of them and would come back on replay. The copies are forced to
+     * disk before anything is deleted, since they may be the only record of writes already acknowledged as durable.
+     */
+    private void compact() throws IOException {
+        HashMap<Segment, Long> live = new HashMap<>();
+        ArrayList<String> names;
+        lock.readLock().lock();
+        try {
+            for (Entry entry : index.values()) {
+                for (Extent extent : entry.data)
+                    live.merge(extent.segment, (long) extent.length, Long::sum);
+                for (Extent extent : entry.hashes)
+                    live.merge(extent.segment, (long) extent.length, Long::sum);
+            }
+            names = new ArrayList<>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        HashSet<Segment> victims = new HashSet<>();
+        boolean olderAllVictims = true;
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                boolean mostlyDead = segment != active && live.getOrDefault(segment, 0L) < segment.size * COMPACT_BELOW;
+                if (mostlyDead && (!segment.hasTombstones || olderAllVictims))
+                    victims.add(segment);
+                olderAllVictims &= mostlyDead;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (victims.isEmpty())
+            return;
+        HashSet<Segment> copiedTo = new HashSet<>();
+        for (String fileName : names) {
+            lock.writeLock().lock();
+            try {
+                Entry entry = index.get(fileName);
+                if (entry == null || !touches(entry, victims))
+                    continue;
+                byte[] data = new byte[entry.dataLength];
+                assemble(entry.data, 0, data);
+                byte[] hashes = new byte[entry.hashesLength];
+                assemble(entry.hashes, 0, hashes);
+                Entry fresh = new Entry();
+                index.put(fileName, fresh);
+                if (!entry.data.isEmpty()) {
+                    Extent extent = appendRecord(DATA, fileName, 0, data);
+                    apply(DATA, fileName, extent);
+                    copiedTo.add(extent.segment);
+                }
+                if (!entry.hashes.isEmpty()) {
+                    Extent extent = appendRecord(HASHES, fileName, 0, hashes);
+                    apply(HASHES, fileName, extent);
+                    copiedTo.add(extent.segment);
+                }
+                compactedBytes.addAndGet(data.length + hashes.length);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        for (Segment segment : copiedTo)
+            segment.channel.force(false);
+        forceDirectory();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : victims) {
+                segments.remove(segment.id);
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static boolean touches(Entry entry, Set<Segment> segments) {
+        for (Extent extent : entry.data) {
+            if (segments.contains(extent.segment))
+                return true;
+        }
+        for (Extent extent : entry.hashes) {
+            if (segments.contains(extent.segment))
+                return true;
+        }
+        return false;
+    }
+}
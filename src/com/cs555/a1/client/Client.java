@@ -1,22 +1,57 @@
 package com.cs555.a1.client;
 
 import com.cs555.a1.Helper;
+import com.cs555.a1.Protocol;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.cs555.a1.Helper.TOTAL_SHARDS;
 
 public class Client {
+    private static class ShardRead {
+        final int index;
+        final byte[] contents;  // null when the shard could not be read
+
+        ShardRead(int index, byte[] contents) {
+            this.index = index;
+            this.contents = contents;
+        }
+    }
+
     private final int chunkPort;
     private final int controllerPort;
     private final String controllerMachine;
+    private final Disperser disperser;
+    private final LocationCache locationCache;
+    private final ExecutorService readPool;
+    private final ExecutorService shardPool;
 
     public Client(int controllerPort, String controllerMachine, int chunkPort) {
         this.controllerMachine = controllerMachine;
         this.controllerPort = controllerPort;
         this.chunkPort = chunkPort;
+        this.disperser = new Disperser(controllerPort, controllerMachine, chunkPort);
+        this.locationCache = new LocationCache();
+        this.readPool = Executors.newFixedThreadPool(Helper.readAheadWindow, r -> {
+            Thread t = new Thread(r, "read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+        this.shardPool = Executors.newFixedThreadPool(Helper.readAheadWindow * TOTAL_SHARDS, r -> {
+            Thread t = new Thread(r, "shard-read");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     public void run() {
@@ -61,140 +96,284 @@ public class Client {
     }
 
     private boolean processWrite(String fileName) {
-        byte[][][] chunks = chunkify(fileName);
-        if (chunks == null) {
-            System.out.println("Error reading file from disk");
-            return false;
-        } else {
-            for (int i = 0; i < chunks.length; i++) {
-                if (!disperseChunk(fileName + "." + i, chunks[i]))
-                    return false;
+        // read the file one chunk at a time and hand each chunk to the disperser, so sending starts right away
+        // and memory is bounded by the write window rather than by the file size
+        Semaphore window = new Semaphore(Helper.writeWindow);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        ArrayList<CompletableFuture<Void>> inFlight = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            int numChunks = (int) ((fileChannel.size() + Helper.BpChunk - 1) / Helper.BpChunk);
+            Disperser.Placements placements = disperser.allocate(fileName, 0, numChunks);
+            if (placements == null)
+                return false;
+            locationCache.putFile(fileName, placements);
+            for (int i = 0; i < numChunks && !failed.get(); i++) {
+                window.acquire();
+                ByteBuffer buffer = ByteBuffer.allocate(Helper.BpChunk);
+                while (buffer.hasRemaining() && fileChannel.read(buffer) != -1);
+                if (buffer.position() == 0) {  // end of file landed on a chunk boundary
+                    window.release();
+                    break;
+                }
+                byte[] chunk = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+                Disperser.Dispersal dispersal = disperser.disperse(fileName, i, chunk, placements);
+                dispersal.committed.thenAccept(committed -> {
+                    if (!committed)
+                        failed.set(true);
+                });
+                inFlight.add(dispersal.finished.whenComplete((v, e) -> window.release()));
+                inFlight.removeIf(CompletableFuture::isDone);
+                if (buffer.hasRemaining())  // short read means this was the last chunk
+                    break;
             }
+        } catch (IOException e) {
+            System.out.println("Error reading file from disk");
+            failed.set(true);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while writing " + fileName);
+            failed.set(true);
         }
-        return true;
+        CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).join();
+        return !failed.get();
     }
 
-    private boolean disperseChunk(String chunkFilename, byte[] chunk) {  // ugly
-        byte[][] newChunk = new byte[1][chunk.length];
-        System.arraycopy(chunk, 0, newChunk[0], 0, chunk.length);
-        return disperseChunk(chunkFilename, newChunk);
+    private boolean processRead(String fileName) {
+        // chunks are written to a side file so a failed read leaves any existing local copy untouched
+        Path partPath = Paths.get(fileName + ".part");
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(partPath.toFile())) {
+                if (!readChunks(fileName, fileOutputStream))
+                    return false;
+            }
+            Files.move(partPath, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(partPath);
+            } catch (IOException ignored) {
+            }
+        }
     }
 
-    private boolean disperseChunk(String chunkFilename, byte[][] chunk) {
-        byte[][] shards;
-        if (Helper.useReplication) {
-            shards = chunk;
-        } else {
-            shards = Helper.erasureEncode(chunk[0]);
-        }
-        for (int j = 0; j < shards.length; j++) {
-            String shardFilename;
-            shardFilename = chunkFilename + "." + j;
-            try (
-                    Socket controllerSocket = new Socket(controllerMachine, controllerPort);
-                    DataInputStream controllerIn = new DataInputStream(controllerSocket.getInputStream());
-                    DataOutputStream controllerOut = new DataOutputStream(controllerSocket.getOutputStream())
-            ) {
-                controllerOut.writeUTF("write");
-                controllerOut.writeUTF(shardFilename);
-                if (!controllerIn.readBoolean()) {
-                    System.out.println("Controller not accepting writes.");
-                    return false;
+    private boolean readChunks(String fileName, OutputStream fileOutputStream) throws IOException {
+        // keep up to readAheadWindow chunks in flight and write each one out as soon as it is next in sequence
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        int cachedChunks = locationCache.getChunkCount(fileName);
+        // read ahead no further than the cached chunk count and the one chunk past it, which is only probed for; the
+        // file has grown since it was cached if that one turns up, and only then is it read on past the count
+        int knownChunks = cachedChunks < 0 ? locateFile(fileName) : cachedChunks;
+        int bound = knownChunks < 0 ? Helper.readLimit : Integer.min(knownChunks + 1, Helper.readLimit);
+        int nextChunk = 0;
+        int numChunks = 0;
+        try {
+            while (true) {
+                while (pending.size() < Helper.readAheadWindow && nextChunk < bound) {
+                    int i = nextChunk++;
+                    pending.add(readPool.submit(() -> i == knownChunks
+                            ? fetchChunkPastCount(fileName, i)
+                            : fetchChunk(fileName, i)));
                 }
-                int numServers = controllerIn.readInt();
-                ArrayList<String> chunkServers = new ArrayList<>();
-                for (int k = 0; k < numServers; k++)
-                    chunkServers.add(controllerIn.readUTF());
-                controllerIn.close();
-                controllerOut.close();
-                controllerSocket.close();
-                //now proceed to write to chunk server (with forwarding info)
-                if (!Helper.writeToChunkServerWithForward(shards[j], shardFilename, chunkServers, chunkPort)) {
-                    Helper.processTaddle(controllerMachine, controllerPort, shardFilename, chunkServers);
+                if (pending.isEmpty()) {
+                    System.out.println("File too large (maximum number of chunks exceeded)");
                     return false;
                 }
+                byte[] chunk = pending.poll().get();
+                if (chunk == null) {  // past the last chunk
+                    if (numChunks == 0) {
+                        System.out.println("File not found");
+                        return false;
+                    }
+                    return true;
+                }
+                fileOutputStream.write(chunk);
+                numChunks++;
+                if (numChunks == bound)  // the probe found a chunk, so the file grew and the count means nothing
+                    bound = Helper.readLimit;
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while reading " + fileName);
+            return false;
+        } finally {
+            for (Future<byte[]> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    // returns the contents of chunk i, or null if the file has no such chunk
+    private byte[] fetchChunk(String fileName, int i) throws IOException {
+        if (Helper.hedgedReads && !Helper.useReplication)
+            return fetchChunkHedged(fileName, i);
+        boolean needsRedispersed = false;
+        ArrayList<byte[]> shards = new ArrayList<>();
+        String chunkFilename = fileName + "." + i;
+        int shardLimit = Helper.useReplication ? 1 : TOTAL_SHARDS;
+        for (int j = 0; j < shardLimit; j++) {
+            String shardFilename = chunkFilename + "." + j;
+            if (Helper.useReplication)  // a shard nobody holds means we've reached the end of the chunks
+                return readShard(shardFilename);
+            byte[] readChunk;
+            try {
+                readChunk = readShard(shardFilename);
             } catch (IOException e) {
-                System.out.println("Error opening socket connection.");
-                e.printStackTrace();
-                return false;
+                System.out.println(e.getMessage());
+                readChunk = null;
             }
+            if (readChunk == null)  // if erasure, we know it's there, so call it missing
+                needsRedispersed = true;
+            shards.add(readChunk);
         }
-        return true;
+
+        boolean foundShard = false;
+        for (byte[] shard : shards) {
+            if (shard != null) {
+                foundShard = true;
+                break;
+            }
+        }
+        if (!foundShard)  //assume no shards found for this chunk means the chunk doesn't exist
+            return null;
+        byte[] chunk = decode(shards);
+        if (chunk == null)
+            throw new IOException("Not enough shards to decode " + chunkFilename);
+        if (needsRedispersed)
+            redisperse(fileName, i, chunk);
+        return chunk;
     }
 
-    private boolean processRead(String fileName) {
-        try {
-            ArrayList<byte[]> chunks = new ArrayList<>();
-            int shardLimit = Helper.useReplication ? 1 : TOTAL_SHARDS;
-            chunkloop: for (int i = 0; i < Helper.readLimit; i++) {
-                boolean needsRedispersed = false;
-                ArrayList<byte[]> shards = new ArrayList<>();
-                String chunkFilename = fileName + "." + i;
-                shardloop: for (int j = 0; j < shardLimit; j++) {
-                    String shardFilename = chunkFilename + "." + j;
-                    String readServer = Helper.readFromController(
-                            controllerMachine, controllerPort, shardFilename, false, false);
-                    if (readServer == null) {  // controller can't find file
-                        if (!Helper.useReplication) { // if erasure, we know it's there, so call it missing
-                            shards.add(null);
-                            needsRedispersed = true;
-                            continue shardloop;
-                        } else if (i == 0) {
-                            System.out.println("File not found");
-                            return false;
-                        } else { //we've reached the end of the chunks (and using replication), so exit outer loop
-                            break chunkloop;
-                        }
-                    }
+    // the chunk just past the cached chunk count, or null if the file still ends there: a single lookup of its first
+    // shard decides, rather than looking up every shard of a chunk that is most likely not there
+    private byte[] fetchChunkPastCount(String fileName, int i) throws IOException {
+        String shardFilename = fileName + "." + i + ".0";
+        if (locationCache.get(shardFilename) == null
+                && Helper.readFromController(controllerMachine, controllerPort, shardFilename, false, false) == null)
+            return null;
+        locateFile(fileName);  // the file grew, so fetch where all of its new chunks are in one call
+        return fetchChunk(fileName, i);
+    }
 
-                    System.out.println("Reading " + shardFilename + " from " + readServer);
-                    byte[] readChunk = Helper.readFromChunkServer(shardFilename, readServer, chunkPort, 0, -1);
-                    if (Helper.useReplication && readChunk == null)
-                        return false;
-                    else if (readChunk == null)
-                        needsRedispersed = true;
-                    shards.add(readChunk);
+    // asks for the data shards first and decodes from the first DATA_SHARDS valid shards to arrive; parity shards are
+    // only requested when a data shard is missing or has not arrived within hedgeMillis
+    private byte[] fetchChunkHedged(String fileName, int i) throws IOException {
+        String chunkFilename = fileName + "." + i;
+        CompletionService<ShardRead> arrivals = new ExecutorCompletionService<>(shardPool);
+        ArrayList<Future<ShardRead>> requests = new ArrayList<>();
+        ArrayList<byte[]> shards = new ArrayList<>(Collections.nCopies(TOTAL_SHARDS, null));
+        int nextShard = 0;
+        int received = 0;
+        int missing = 0;
+        try {
+            for (; nextShard < Helper.DATA_SHARDS; nextShard++)
+                requests.add(submitShardRead(arrivals, chunkFilename, nextShard));
+            while (received < Helper.DATA_SHARDS && received + missing < nextShard) {
+                Future<ShardRead> arrival = nextShard < TOTAL_SHARDS
+                        ? arrivals.poll(Helper.hedgeMillis, TimeUnit.MILLISECONDS)
+                        : arrivals.take();
+                if (arrival == null) {  // a data shard is slow, hedge with the parity shards
+                    while (nextShard < TOTAL_SHARDS)
+                        requests.add(submitShardRead(arrivals, chunkFilename, nextShard++));
+                    continue;
                 }
-                if (Helper.useReplication)
-                    chunks.add(shards.get(0));
-                else {
-                    boolean foundShard = false;
-                    for (byte[] shard : shards) {
-                        if (shard != null) {
-                            foundShard = true;
-                            break;
-                        }
-                    }
-                    if (!foundShard) {  //assume no shards found for this chunk means the chunk doesn't exist
-                        if (i == 0) {
-                            System.out.println("File not found.");
-                            return false;
-                        }
-                        break chunkloop;
-                    }
-                    byte[] chunk = decode(shards);
-                    if (chunk == null)
-                        return false;
-                    if (needsRedispersed) {
-                        System.out.println("Shard missing, redispersing " + chunkFilename + ".*");
-                        disperseChunk(chunkFilename, chunk);
-                    }
-                    chunks.add(chunk);
+                ShardRead shard = arrival.get();
+                if (shard.contents == null) {
+                    missing++;
+                    if (nextShard < TOTAL_SHARDS)
+                        requests.add(submitShardRead(arrivals, chunkFilename, nextShard++));
+                } else {
+                    shards.set(shard.index, shard.contents);
+                    received++;
                 }
             }
-            if (chunks.size() == Helper.readLimit) {
-                System.out.println("File too large (maximum number of chunks exceeded)");
-                return false;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Interrupted reading " + chunkFilename, e);
+        } finally {
+            for (Future<ShardRead> request : requests)
+                request.cancel(true);
+        }
+        if (received == 0)  //assume no shards found for this chunk means the chunk doesn't exist
+            return null;
+        byte[] chunk = decode(shards);
+        if (chunk == null)
+            throw new IOException("Not enough shards to decode " + chunkFilename);
+        if (missing > 0)
+            redisperse(fileName, i, chunk);
+        return chunk;
+    }
+
+    private Future<ShardRead> submitShardRead(CompletionService<ShardRead> arrivals, String chunkFilename, int j) {
+        String shardFilename = chunkFilename + "." + j;
+        return arrivals.submit(() -> {
+            try {
+                return new ShardRead(j, readShard(shardFilename));
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                return new ShardRead(j, null);
             }
+        });
+    }
 
-            dechunkifyList(fileName, chunks); // writes file to disk
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    // reads a shard from a cached location if there is one, otherwise (or if that location turns out to be stale)
+    // from the server the controller names; null means no server holds the shard, a failed read throws
+    private byte[] readShard(String shardFilename) throws IOException {
+        String readServer = locationCache.get(shardFilename);
+        if (readServer != null) {
+            try {
+                byte[] contents = readShardFrom(shardFilename, readServer);
+                if (contents != null)
+                    return contents;
+            } catch (IOException e) {
+                System.out.println("Cached location failed for " + shardFilename + ": " + e.getMessage());
+            }
+            locationCache.invalidate(shardFilename);
+        }
+        readServer = Helper.readFromController(controllerMachine, controllerPort, shardFilename, false, false);
+        if (readServer == null)
+            return null;
+        byte[] contents = readShardFrom(shardFilename, readServer);
+        if (contents == null)
+            throw new IOException("Failed reading " + shardFilename + " from " + readServer);
+        return contents;
+    }
+
+    private byte[] readShardFrom(String shardFilename, String readServer) throws IOException {
+        System.out.println("Reading " + shardFilename + " from " + readServer);
+        return Helper.readFromChunkServer(shardFilename, readServer, chunkPort, 0, -1);
+    }
+
+    // fills the location cache for every shard of the file with a single controller call; returns the number of
+    // chunks found, or -1 if the call failed
+    private int locateFile(String fileName) {
+        int numShards = Disperser.shardsPerChunk();
+        try {
+            Disperser.Placements placements = Helper.connectionPool.call(controllerMachine, controllerPort, Protocol.LOCATE,
+                    controllerOut -> {
+                        controllerOut.writeUTF(fileName);
+                        controllerOut.writeInt(numShards);
+                    }, controllerIn -> {
+                        int numChunks = controllerIn.readInt();
+                        return Disperser.Placements.read(controllerIn, 0, numChunks, numShards);
+                    });
+            if (placements.numChunks() > 0)
+                locationCache.putFile(fileName, placements);
+            return placements.numChunks();
+        } catch (IOException e) {  // reads fall back to per-shard lookups
+            System.out.println("Bulk lookup failed for " + fileName + ": " + e.getMessage());
+            return -1;
         }
     }
 
+    private void redisperse(String fileName, int i, byte[] chunk) {
+        System.out.println("Shard missing, redispersing " + fileName + "." + i + ".*");
+        Disperser.Placements placements = disperser.allocate(fileName, i, 1);
+        if (placements != null)
+            disperser.disperse(fileName, i, chunk, placements).committed.join();
+    }
+
     private byte[] decode(ArrayList<byte[]> shardsIn) {
         int shardSize = 0;
 
@@ -215,31 +394,6 @@ public class Client {
         return Helper.erasureDecode(shardsOut, shardsPresent, shardSize);
     }
 
-    private byte[][][] chunkify(String fileName) {
-        byte[] contents;
-        try (FileInputStream fileInputStream = new FileInputStream(fileName)) {
-            contents = fileInputStream.readAllBytes();
-        } catch (IOException e) {
-            return null;
-        }
-        int numChunks = contents.length / Helper.BpChunk;
-        if (contents.length % Helper.BpChunk != 0) numChunks++;
-        byte[][][] chunks = new byte[numChunks][1][Helper.BpChunk];
-        for (int i = 0; i < numChunks; i++) {
-            int startIdx = i*Helper.BpChunk;
-            int endIdx = Integer.min((i*Helper.BpChunk)+Helper.BpChunk, contents.length);
-            chunks[i][0] = Arrays.copyOfRange(contents, startIdx, endIdx);
-        }
-        return chunks;
-    }
-
-    private void dechunkifyList(String fileName, ArrayList<byte[]> chunks) throws IOException {
-        FileOutputStream fileOutputStream = new FileOutputStream(fileName);
-        for (byte[] chunk : chunks) {
-            fileOutputStream.write(chunk);
-        }
-    }
-
     private void printHelp() {
         System.out.println("Available commands:");
         System.out.println("\t[quit,exit,bye]: Exit the program.");
@@ -0,0 +1,207 @@
+package com.cs555.a1.client;
+
+import com.cs555.a1.Helper;
+import com.cs555.a1.Protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the shards of many chunks to their chunk servers in parallel. Every shard is an independent task on a
+ * fixed pool of Helper.dispersalThreads threads; a chunk commits once Helper.writeQuorum of its shards are durable,
+ * while the remaining shards keep going in the background. Placements come from a single allocate call per file.
+ */
+class Disperser {
+    static class Dispersal {
+        // completes with true once enough shards are durable, or false once that can no longer happen
+        final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+        // completes once every shard has either been written or given up on
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        private int quorum;
+        private int remaining;
+        private int succeeded = 0;
+        private int failed = 0;
+
+        private synchronized void start(int numShards) {
+            this.remaining = numShards;
+            this.quorum = Integer.min(Helper.writeQuorum, numShards);
+        }
+
+        private synchronized void shardDone(boolean success) {
+            if (success)
+                succeeded++;
+            else
+                failed++;
+            remaining--;
+            if (succeeded >= quorum)
+                committed.complete(true);
+            else if (failed > (succeeded + failed + remaining) - quorum)
+                committed.complete(false);
+            if (remaining == 0)
+                finished.complete(null);
+        }
+
+        private void abort() {
+            committed.complete(false);
+            finished.complete(null);
+        }
+    }
+
+    /**
+     * Server lists for a run of chunks, as returned by the controller's allocate and locate verbs. Servers are stored
+     * once and each shard holds indices into that table.
+     */
+    static class Placements {
+        private final String[] servers;
+        private final int[][] shards;
+        private final int firstChunk;
+        private final int numShards;
+
+        private Placements(String[] servers, int[][] shards, int firstChunk, int numShards) {
+            this.servers = servers;
+            this.shards = shards;
+            this.firstChunk = firstChunk;
+            this.numShards = numShards;
+        }
+
+        // reads the compact form shared by the controller's allocate and locate responses
+        static Placements read(DataInputStream in, int firstChunk, int numChunks, int numShards) throws IOException {
+            String[] servers = new String[in.readInt()];
+            for (int i = 0; i < servers.length; i++)
+                servers[i] = in.readUTF();
+            int[][] shards = new int[numChunks * numShards][];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new int[in.readUnsignedByte()];
+                for (int k = 0; k < shards[i].length; k++)
+                    shards[i][k] = in.readUnsignedShort();
+            }
+            return new Placements(servers, shards, firstChunk, numShards);
+        }
+
+        int numChunks() {
+            return shards.length / numShards;
+        }
+
+        int numShards() {
+            return numShards;
+        }
+
+        ArrayList<String> get(int chunk, int shard) {
+            ArrayList<String> chunkServers = new ArrayList<>();
+            for (int id : shards[(chunk - firstChunk) * numShards + shard])
+                chunkServers.add(servers[id]);
+            return chunkServers;
+        }
+    }
+
+    private final int chunkPort;
+    private final int controllerPort;
+    private final String controllerMachine;
+    private final ExecutorService pool;
+
+    Disperser(int controllerPort, String controllerMachine, int chunkPort) {
+        this.controllerMachine = controllerMachine;
+        this.controllerPort = controllerPort;
+        this.chunkPort = chunkPort;
+        this.pool = Executors.newFixedThreadPool(Helper.dispersalThreads, r -> {
+            Thread t = new Thread(r, "disperser");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static int shardsPerChunk() {
+        return Helper.useReplication ? 1 : Helper.TOTAL_SHARDS;
+    }
+
+    Placements allocate(String fileName, int firstChunk, int numChunks) {
+        int numShards = shardsPerChunk();
+        try {
+            Placements placements = Helper.connectionPool.call(controllerMachine, controllerPort, Protocol.ALLOCATE,
+                    controllerOut -> {
+                        controllerOut.writeUTF(fileName);
+                        controllerOut.writeInt(firstChunk);
+                        controllerOut.writeInt(numChunks);
+                        controllerOut.writeInt(numShards);
+                    }, controllerIn -> controllerIn.readBoolean()
+                            ? Placements.read(controllerIn, firstChunk, numChunks, numShards)
+                            : null);
+            if (placements == null)
+                System.out.println("Controller not accepting writes.");
+            return placements;
+        } catch (IOException e) {
+            System.out.println("Error opening socket connection.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    Dispersal disperse(String fileName, int chunkIndex, byte[] chunk, Placements placements) {
+        Dispersal dispersal = new Dispersal();
+        String chunkFilename = fileName + "." + chunkIndex;
+        pool.execute(() -> {
+            try {
+                byte[][] shards = Helper.useReplication ? new byte[][] {chunk} : Helper.erasureEncode(chunk);
+                dispersal.start(shards.length);
+                for (int j = 0; j < shards.length; j++) {
+                    String shardFilename = chunkFilename + "." + j;
+                    byte[] shard = shards[j];
+                    ArrayList<String> placement = placements.get(chunkIndex, j);
+                    pool.execute(() -> dispersal.shardDone(writeShard(shardFilename, shard, placement)));
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                dispersal.abort();
+            }
+        });
+        return dispersal;
+    }
+
+    private boolean writeShard(String shardFilename, byte[] shard, ArrayList<String> allocated) {
+        for (int attempt = 0; attempt <= Helper.writeRetries; attempt++) {
+            // the first attempt uses the bulk allocation, retries ask the controller for this shard alone
+            ArrayList<String> chunkServers = attempt == 0 ? allocated : getPlacement(shardFilename);
+            if (chunkServers == null)
+                return false;
+            ArrayList<String> placement = new ArrayList<>(chunkServers);
+            if (Helper.writeToChunkServerWithForward(shard, shardFilename, chunkServers, chunkPort))
+                return true;
+            // drop the failed placement so the controller picks fresh servers for the next attempt
+            try {
+                Helper.processTaddle(controllerMachine, controllerPort, shardFilename, placement);
+            } catch (IOException e) {
+                System.out.println("Error reporting failed write of " + shardFilename);
+            }
+            System.out.println("Write of " + shardFilename + " failed on attempt " + (attempt + 1));
+        }
+        return false;
+    }
+
+    private ArrayList<String> getPlacement(String shardFilename) {
+        try {
+            ArrayList<String> chunkServers = Helper.connectionPool.call(controllerMachine, controllerPort, Protocol.PLACE,
+                    controllerOut -> {
+                        controllerOut.writeUTF(shardFilename);
+                    }, controllerIn -> {
+                        if (!controllerIn.readBoolean())
+                            return null;
+                        int numServers = controllerIn.readInt();
+                        ArrayList<String> servers = new ArrayList<>();
+                        for (int k = 0; k < numServers; k++)
+                            servers.add(controllerIn.readUTF());
+                        return servers;
+                    });
+            if (chunkServers == null)
+                System.out.println("Controller not accepting writes.");
+            return chunkServers;
+        } catch (IOException e) {
+            System.out.println("Error opening socket connection.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
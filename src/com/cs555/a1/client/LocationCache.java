@@ -0,0 +1,95 @@
+package com.cs555.a1.client;
+
+import com.cs555.a1.Helper;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers which chunk servers hold each shard, so re-reads of a file don't ask the controller again. Entries are
+ * evicted least recently used beyond Helper.locationCacheSize and expire after Helper.locationCacheTtlSeconds.
+ * The number of chunks in a file is cached the same way, so a file already located isn't located again. It is only a
+ * hint: the file may have been written longer since, so reads don't take it as where the file ends.
+ */
+class LocationCache {
+    private static class Timed<T> {
+        final T value;
+        final long expires;
+
+        Timed(T value) {
+            this.value = value;
+            this.expires = System.nanoTime() + Helper.locationCacheTtlSeconds * 1_000_000_000L;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expires > 0;
+        }
+    }
+
+    private static class LruMap<T> extends LinkedHashMap<String, Timed<T>> {
+        private static final long serialVersionUID = 1L;
+
+        LruMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Timed<T>> eldest) {
+            return size() > Helper.locationCacheSize;
+        }
+    }
+
+    private final LruMap<String[]> shards = new LruMap<>();
+    private final LruMap<Integer> fileLengths = new LruMap<>();
+
+    // a random cached holder of the shard, or null if the cache can't say
+    synchronized String get(String shardFilename) {
+        String[] servers = lookup(shards, shardFilename);
+        if (servers == null)
+            return null;
+        return servers[ThreadLocalRandom.current().nextInt(servers.length)];
+    }
+
+    synchronized void put(String shardFilename, List<String> servers) {
+        if (servers.isEmpty())
+            shards.remove(shardFilename);
+        else
+            shards.put(shardFilename, new Timed<>(servers.toArray(new String[0])));
+    }
+
+    synchronized void invalidate(String shardFilename) {
+        shards.remove(shardFilename);
+    }
+
+    // number of chunks in the file, or -1 if unknown
+    synchronized int getChunkCount(String fileName) {
+        Integer numChunks = lookup(fileLengths, fileName);
+        return numChunks == null ? -1 : numChunks;
+    }
+
+    synchronized void putChunkCount(String fileName, int numChunks) {
+        fileLengths.put(fileName, new Timed<>(numChunks));
+    }
+
+    // fills the cache with the locations of every shard of the file, from a bulk lookup or a fresh allocation
+    synchronized void putFile(String fileName, Disperser.Placements placements) {
+        for (int i = 0; i < placements.numChunks(); i++) {
+            for (int j = 0; j < placements.numShards(); j++)
+                put(fileName + "." + i + "." + j, placements.get(i, j));
+        }
+        putChunkCount(fileName, placements.numChunks());
+    }
+
+    private static <T> T lookup(LruMap<T> map, String key) {
+        Timed<T> entry = map.get(key);
+        if (entry == null)
+            return null;
+        if (entry.isExpired()) {
+            map.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+}
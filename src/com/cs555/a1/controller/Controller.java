@@ -1,6 +1,10 @@
 package com.cs555.a1.controller;
 
+import com.cs555.a1.HeartbeatReport;
 import com.cs555.a1.Helper;
+import com.cs555.a1.InventoryDigest;
+import com.cs555.a1.Protocol;
+import com.cs555.a1.SelectorServer;
 
 import java.io.*;
 import java.net.*;
@@ -8,15 +12,18 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static com.cs555.a1.Helper.replicationFactor;
 
 public class Controller {
 
-    static class ChunkMachine implements Comparable<ChunkMachine> {
+    static class ChunkMachine {
         String name;
-        int freeSpace;
+        int freeSpace;  // changed only through PlacementIndex, which orders by it
         int numChunks;
+        long lastReport = 0;  // sequence number of the last heartbeat applied, 0 before the first full one
+        long lastCheckedAt;  // System.nanoTime() the controller's view of it was last checked for drift
         ChunkMachine(String name, int space, int numChunks){
             this.name = name;
             this.freeSpace = space;
@@ -42,28 +49,35 @@ public class Controller {
             return name.hashCode();
         }
 
-        @Override
-        public int compareTo(ChunkMachine c) {
-            return this.freeSpace - c.freeSpace; // descending order (biggest space first)
-        }
-
         @Override
         public String toString() {
             return String.format("name: %s, freeSpace: %s, numChunks: %s", name, freeSpace, numChunks);
         }
     }
 
-    private ServerSocket ss;
-    private boolean shutdown = false;
-    private final ConcurrentHashMap<String, HashSet<String>> chunksToMachines;  //chunks to machines which contain them
-    private final ArrayList<ChunkMachine> chunkMachines; //machines to metrics (free space and total number)
+    private final SelectorServer server;
+    // Each file maps to a compact record of the machines holding each of its shards, which readers consult without
+    // locking. Changes to a file go through compute on its entry, which serializes writers per file only, and the
+    // digests of the machines involved change inside that same compute.
+    // Lock order: a ChunkMachine (held while applying its heartbeat), a file's map bin, chunkMachines.
+    private final ConcurrentHashMap<String, FileRecord> files;  //files to the machines holding each shard
+    private final ServerTable machineIds = new ServerTable();  //machine names to the ids files refer to them by
+    // machine ids to the files they hold any shard of, so finding what one machine holds skips every other file
+    private final ConcurrentHashMap<Integer, Set<FileRecord>> holdings = new ConcurrentHashMap<>();
+    private final PlacementIndex chunkMachines; //machines to metrics (free space and total number)
+    // machines to a digest of the chunks they are thought to hold, to check their reports against
+    private final ConcurrentHashMap<String, InventoryDigest> digests = new ConcurrentHashMap<>();
     private int chunkPort;
 
     public Controller(int controllerPort, int chunkPort) throws IOException {
-        this.chunksToMachines = new ConcurrentHashMap<>();
-        this.chunkMachines = new ArrayList<>();
+        this.files = new ConcurrentHashMap<>();
+        this.chunkMachines = new PlacementIndex();
         this.chunkPort = chunkPort;
-        ss = new ServerSocket(controllerPort);
+        server = new SelectorServer("controller", controllerPort, Helper.controllerWorkers,
+                Helper.controllerQueueCapacity, Helper.maxServerConnections, (host, opcode, in, response) -> {
+                    new ControllerRequestHandler(host, in, response.data).handle(opcode);
+                    return null;
+                });
         final Thread mainThread = Thread.currentThread();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
@@ -76,33 +90,95 @@ public class Controller {
     }
 
     private void Close() throws IOException {
-        ss.close();
-        shutdown = true;
+        server.close();
     }
 
     public void run() throws IOException {
-        // running infinite loop for getting
-        // client request
         Thread mT = new ControllerChunkWatcher();
         mT.start();
-        while (!shutdown)
-        {
-            Socket s = null;
-            try
-            {
-                s = ss.accept();
-                DataInputStream in = new DataInputStream(s.getInputStream());
-                DataOutputStream out = new DataOutputStream(s.getOutputStream());
-                Thread t = new ControllerRequestHandler(s, in, out);
-                t.start();
+        server.run();
+    }
+
+    // records that host holds chunk
+    private void addHolder(String chunk, String host) {
+        FileRecord.Shard shard = FileRecord.Shard.parse(chunk);
+        if (shard == null)
+            return;
+        int id = machineIds.idOf(host);
+        files.compute(shard.file, (k, record) -> {
+            FileRecord next = record == null ? new FileRecord(k) : record;
+            if (next.add(shard.chunk, shard.shard, id)) {
+                digests.computeIfAbsent(host, h -> new InventoryDigest()).add(chunk);
+                holdings.computeIfAbsent(id, i -> ConcurrentHashMap.newKeySet()).add(next);
             }
-            catch (Exception e){
-                if (s != null){
-                    s.close();
-                }
-                e.printStackTrace();
+            return next;
+        });
+    }
+
+    // false if host wasn't known to hold chunk; a file none of whose shards anybody holds is dropped
+    private boolean removeHolder(String chunk, String host) {
+        FileRecord.Shard shard = FileRecord.Shard.parse(chunk);
+        int id = machineIds.find(host);
+        if (shard == null || id < 0)
+            return false;
+        boolean[] removed = {false};
+        files.computeIfPresent(shard.file, (k, record) -> {
+            removed[0] = dropHolder(record, shard, chunk, id);
+            return record.isEmpty() ? null : record;
+        });
+        return removed[0];
+    }
+
+    // removeHolder's change to a record, for a caller already inside the compute on its file
+    private boolean dropHolder(FileRecord record, FileRecord.Shard shard, String chunk, int id) {
+        if (!record.remove(shard.chunk, shard.shard, id))
+            return false;
+        InventoryDigest digest = digests.get(machineIds.nameOf(id));
+        if (digest != null)
+            digest.remove(chunk);
+        if (!record.holds(id)) {
+            Set<FileRecord> held = holdings.get(id);
+            if (held != null)
+                held.remove(record);
+        }
+        return true;
+    }
+
+    // the machines holding chunk
+    private ArrayList<String> holdersOf(String chunk) {
+        ArrayList<String> holders = new ArrayList<>();
+        FileRecord.Shard shard = FileRecord.Shard.parse(chunk);
+        FileRecord record = shard == null ? null : files.get(shard.file);
+        if (record != null) {
+            for (int id : record.holders(shard.chunk, shard.shard))
+                holders.add(machineIds.nameOf(id));
+        }
+        return holders;
+    }
+
+    // the chunks host is thought to hold, all of them or only those in the given digest buckets; goes through each
+    // file host holds any shard of, and is only needed when a report disagrees or a host fails
+    private ArrayList<String> heldBy(String host, int[] buckets) {
+        ArrayList<String> held = new ArrayList<>();
+        int id = machineIds.find(host);
+        if (id < 0)
+            return held;
+        boolean[] wanted = null;
+        if (buckets != null) {
+            wanted = new boolean[InventoryDigest.BUCKETS];
+            for (int bucket : buckets)
+                wanted[bucket] = true;
+        }
+        Set<FileRecord> records = holdings.get(id);
+        if (records == null)
+            return held;
+        for (FileRecord record : records) {
+            for (String chunk : record.heldBy(id)) {
+                if (wanted == null || wanted[InventoryDigest.bucketOf(chunk)])
+                    held.add(chunk);
             }
         }
+        return held;
     }
 
     private class ControllerChunkWatcher extends Thread {
@@ -119,58 +195,41 @@ public class Controller {
                 }
                 if (Duration.between(start, Instant.now()).toSeconds() > Helper.MinorHeartbeatSeconds) {
                     start = Instant.now();
-                    synchronized (chunkMachines) {
-                        synchronized (chunksToMachines) {
-                            Iterator<ChunkMachine> chunkMachineIterator = chunkMachines.iterator();
-                            while (chunkMachineIterator.hasNext()) {
-                                ChunkMachine chunkMachine = chunkMachineIterator.next();
-                                try (
-                                        Socket s = new Socket(chunkMachine.name, chunkPort);
-                                        DataOutputStream out = new DataOutputStream(s.getOutputStream());
-                                        DataInputStream in = new DataInputStream(s.getInputStream())
-                                ) {
-                                    out.writeUTF("heartbeat");
-                                    if (Helper.debug)
-                                        System.out.println("Sending heartbeat to chunk server " + chunkMachine.name);
-                                    if (!in.readBoolean()) {
-                                        throw new IOException();
-                                    }
-                                } catch (IOException e) {
-                                    System.out.println("Chunk server failure detected: " + chunkMachine.name);
-                                    chunkMachineIterator.remove();
-                                    handleFailedServer(chunkMachine);
-                                }
+                    for (ChunkMachine chunkMachine : chunkMachines.all()) {
+                        try {
+                            if (Helper.debug)
+                                System.out.println("Sending heartbeat to chunk server " + chunkMachine.name);
+                            boolean alive = Helper.connectionPool.call(chunkMachine.name, chunkPort, Protocol.PING,
+                                    out -> {}, DataInputStream::readBoolean);
+                            if (!alive) {
+                                throw new IOException();
                             }
+                        } catch (IOException e) {
+                            System.out.println("Chunk server failure detected: " + chunkMachine.name);
+                            chunkMachines.remove(chunkMachine.name);
+                            handleFailedServer(chunkMachine);
                         }
-
                     }
                 }
             }
         }
 
         private void handleFailedServer(ChunkMachine chunkMachine) {
-            //look through all chunks we know about, remove this server from their set of servers
-            for (String chunk : chunksToMachines.keySet()) {
-                // usually this means do nothing, since not all servers maintain all chunks
-                boolean contained = chunksToMachines.get(chunk).remove(chunkMachine.name);
-                //if this means nobody has it, remove the chunk completely
-                if (chunksToMachines.get(chunk).isEmpty()) {
-                    chunksToMachines.remove(chunk);
-                } else if (contained) {
+            //look through all chunks this server held, remove it from their set of servers
+            for (String chunk : heldBy(chunkMachine.name, null)) {
+                //if this means nobody has it, the chunk is removed completely
+                removeHolder(chunk, chunkMachine.name);
+                HashSet<String> servers = new HashSet<>(holdersOf(chunk));
+                if (!servers.isEmpty()) {
                     // the chunk was at this server, now we need to forward it to other machines
-                    HashSet<String> servers = new HashSet<>(chunksToMachines.get(chunk));
                     //store a server which has the chunk
                     Iterator<String> serverIterator = servers.iterator();
                     String first = serverIterator.next();
                     ArrayList<String> serverList = new ArrayList<>();
                     serverList.add(first);
                     // add servers which don't contain the chunk (so not already in the set)
-                    for (int i = 0; serverList.size() + servers.size() - 1 < replicationFactor
-                            && i < chunkMachines.size(); i++) {
-                        String candidate = chunkMachines.get(chunkMachines.size() - 1).name;
-                        if (!servers.contains(candidate))
-                            serverList.add(candidate);
-                    }
+                    for (ChunkMachine candidate : chunkMachines.roomiest(replicationFactor - servers.size(), servers))
+                        serverList.add(candidate.name);
                     if (serverList.size() > 1) {
                         // send this on to the chunk server(s)--they will forward the file if they have it
                         System.out.println("Reinforcing replication on " + chunk + " via " + serverList);
@@ -178,53 +237,55 @@ public class Controller {
                     }
                 }
             }
+            digests.remove(chunkMachine.name);
         }
     }
 
-    // ClientHandler class
-    class ControllerRequestHandler extends Thread
+    // serves one request read off a connection
+    class ControllerRequestHandler
     {
         final DataInputStream in;
         final DataOutputStream out;
-        final Socket s;
-        private Random rng = new Random();
+        final String host;
 
         // Constructor
-        ControllerRequestHandler(Socket s, DataInputStream in, DataOutputStream out)
+        ControllerRequestHandler(String host, DataInputStream in, DataOutputStream out)
         {
-            this.s = s;
+            this.host = host;
             this.in = in;
             this.out = out;
         }
 
-        @Override
-        public void run()
+        void handle(byte opcode) throws IOException
         {
-            try {
-                String host = s.getInetAddress().getHostName();
-                switch (in.readUTF()) {
-                    case "write":
-                        handleWrite();
-                        break;
-                    case "read":
-                        handleRead(host);
-                        break;
-                    case "heartbeat":
-                        processHeartbeat(host, in);
-                        System.out.println("heartbeat processed, chunk machines: " + chunkMachines.toString());
-                        break;
-                    case "taddle":
-                        removeChunk(host);
-                        break;
-                    default:
-                        //out.writeUTF("Invalid input");
-                        break;
-                }
-                this.in.close();
-                this.out.close();
-                this.s.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            switch (opcode) {
+                case Protocol.PLACE:
+                    handleWrite();
+                    break;
+                case Protocol.ALLOCATE:
+                    handleAllocate();
+                    break;
+                case Protocol.LOCATE:
+                    handleLocate();
+                    break;
+                case Protocol.LOOKUP:
+                    handleRead(host);
+                    break;
+                case Protocol.REPLICAS:
+                    handleReplicas(host);
+                    break;
+                case Protocol.HEARTBEAT:
+                    processHeartbeat(host, in);
+                    System.out.println("heartbeat processed, chunk machines: " + chunkMachines.toString());
+                    break;
+                case Protocol.TADDLE:
+                    removeChunk(host);
+                    break;
+                case Protocol.PING:  // a chunk server's pooled connection checking it still works
+                    out.writeBoolean(true);
+                    break;
+                default:
+                    throw new IOException("Invalid opcode received: " + opcode);
             }
         }
 
@@ -237,21 +298,9 @@ public class Controller {
             if (numMachines == 0)
                 machines.add(host);
             System.out.println("Taddle: Removing file " + fileName + " from machines " + machines);
-            synchronized (chunkMachines) {
-                synchronized (chunksToMachines) {
-                    for (String machine : machines) {
-                        HashSet<String> machineSet = chunksToMachines.get(fileName);
-                        if (machineSet != null && machineSet.remove(machine)) {
-                            for (ChunkMachine cm : chunkMachines) {
-                                if (cm.name.equals(machine)) {
-                                    cm.freeSpace++;
-                                    cm.numChunks--;
-                                }
-                            }
-                        }
-                    }
-                    chunkMachines.sort(ChunkMachine::compareTo);
-                }
+            for (String machine : machines) {
+                if (removeHolder(fileName, machine))
+                    chunkMachines.adjust(machine, -1);
             }
         }
 
@@ -259,19 +308,17 @@ public class Controller {
             String fileName;
             fileName = in.readUTF();
             boolean isFailure = in.readBoolean();
-            if (chunksToMachines.containsKey(fileName)) {
-                HashSet<String> machines = chunksToMachines.get(fileName);
-                if (isFailure) { //isFailure
-                    machines.remove(host);
-                }
-                HashSet<String> readMatches = new HashSet<>(machines);
+            if (isFailure)
+                removeHolder(fileName, host);
+            ArrayList<String> readMatches = holdersOf(fileName);
+            if (!readMatches.isEmpty()) {
                 if (in.readBoolean() && !isFailure) //is chunk server?
                     readMatches.remove(host);
                 if (readMatches.isEmpty()) {
                     out.writeBoolean(false);
                 } else {
                     out.writeBoolean(true);
-                    String randServer = getRandomElement(readMatches, rng);
+                    String randServer = readMatches.get(ThreadLocalRandom.current().nextInt(readMatches.size()));
                     out.writeUTF(randServer);
                 }
             } else {
@@ -279,113 +326,227 @@ public class Controller {
             }
         }
 
+        private void handleReplicas(String host) throws IOException {
+            String fileName = in.readUTF();
+            boolean isFailure = in.readBoolean();
+            if (isFailure)
+                removeHolder(fileName, host);
+            ArrayList<String> replicas = holdersOf(fileName);
+            replicas.remove(host);
+            Collections.shuffle(replicas, ThreadLocalRandom.current());  // spread repairs over the holders
+            out.writeInt(replicas.size());
+            for (String replica : replicas)
+                out.writeUTF(replica);
+        }
+
         private void handleWrite() throws IOException {
-            String fileName;
-            synchronized (chunkMachines) {
-                synchronized (chunksToMachines) {
-                    fileName = in.readUTF();
-                    // we need up-to-date sorting (from heartbeats)
-                    if (chunkMachines.isEmpty()) {
-                        out.writeBoolean(false);
-                    } else if (chunkMachines.get(chunkMachines.size() - 1).freeSpace <= 0) {
-                        out.writeBoolean(false);
-                    } else {
-                        out.writeBoolean(true);
-                        HashSet<String> writeMachines = chunksToMachines.computeIfAbsent(fileName, k -> new HashSet<>());
-                        int replicationFactor = Integer.min(Helper.replicationFactor, chunkMachines.size());
-                        // send to servers which have it first
-                        // then to servers which have the most room (up to replication factor)
-                        out.writeInt(replicationFactor);
-                        for (String machine : writeMachines) {
-                            out.writeUTF(machine);
-                        }
-                        int numSent = writeMachines.size();
-                        for (int i = 0; numSent < replicationFactor; i++) {
-                            String bestServer = chunkMachines.get(chunkMachines.size() - 1 - i).name;
-                            if (!writeMachines.contains(bestServer)) {
-                                out.writeUTF(bestServer);
-                                decrementSpace(bestServer);
-                                writeMachines.add(bestServer);
-                                numSent++;
-                            }
-                        }
-                        chunkMachines.sort(ChunkMachine::compareTo);
+            String fileName = in.readUTF();
+            ChunkMachine roomiest = chunkMachines.roomiest();
+            if (roomiest == null || roomiest.freeSpace <= 0) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                ArrayList<String> placement = placeShard(fileName);
+                out.writeInt(placement.size());
+                for (String machine : placement)
+                    out.writeUTF(machine);
+            }
+        }
+
+        // places every shard of a run of chunks in one metadata update and one response, so a client writing a
+        // whole file makes a single controller call instead of one per shard; the update is a single compute on the
+        // file's record, so a locate never sees half an allocation and one failing partway takes back what it claimed
+        private void handleAllocate() throws IOException {
+            String fileName = in.readUTF();
+            int firstChunk = in.readInt();
+            int numChunks = in.readInt();
+            int numShards = in.readInt();
+            if (firstChunk < 0 || numChunks < 0 || numShards < 0 || numShards > Byte.MAX_VALUE + 1
+                    || (long) firstChunk + numChunks > Integer.MAX_VALUE
+                    || (long) numChunks * numShards > Integer.MAX_VALUE - 8)
+                throw new IOException("Invalid allocation of " + numChunks + " chunks from " + firstChunk + " of "
+                        + fileName);
+            ArrayList<String> servers = new ArrayList<>();
+            int[][] placements = new int[numChunks * numShards][];
+            long freeSpace = chunkMachines.totalFreeSpace();
+            int replicationFactor = Integer.min(Helper.replicationFactor, chunkMachines.size());
+            if (chunkMachines.isEmpty() || freeSpace < (long) placements.length * replicationFactor) {
+                out.writeBoolean(false);
+                return;
+            }
+            ArrayList<ArrayList<String>> placed = new ArrayList<>(placements.length);
+            files.compute(fileName, (k, record) -> {
+                FileRecord next = record == null ? new FileRecord(k) : record;
+                ArrayList<String[]> claimed = new ArrayList<>();
+                try {
+                    for (int i = 0; i < numChunks; i++) {
+                        for (int j = 0; j < numShards; j++)
+                            placed.add(place(next, firstChunk + i, j, claimed));
                     }
+                } catch (RuntimeException e) {
+                    for (String[] claim : claimed) {
+                        chunkMachines.adjust(claim[1], -1);
+                        int id = machineIds.find(claim[1]);
+                        if (id >= 0)
+                            dropHolder(next, FileRecord.Shard.parse(claim[0]), claim[0], id);
+                    }
+                    throw e;
+                }
+                return next.isEmpty() ? null : next;
+            });
+            HashMap<String, Integer> serverIds = new HashMap<>();
+            for (int p = 0; p < placements.length; p++) {
+                ArrayList<String> placement = placed.get(p);
+                int[] ids = new int[placement.size()];
+                for (int k = 0; k < ids.length; k++) {
+                    ids[k] = serverIds.computeIfAbsent(placement.get(k), name -> {
+                        servers.add(name);
+                        return servers.size() - 1;
+                    });
                 }
+                placements[p] = ids;
+            }
+            // servers are sent once and shards refer to them by index, which keeps big allocations compact
+            out.writeBoolean(true);
+            out.writeInt(servers.size());
+            for (String server : servers)
+                out.writeUTF(server);
+            for (int[] ids : placements) {
+                out.writeByte(ids.length);
+                for (int id : ids)
+                    out.writeShort(id);
             }
         }
 
-        private void decrementSpace(String chunkServer) {
-            for (ChunkMachine m : chunkMachines) {
-                if (m.name.equals(chunkServer)) {
-                    m.numChunks++;
-                    m.freeSpace--;
-                    return;
+        // lists every holder of every shard of a file in one response, in the same compact form as allocate; the
+        // file ends at the first chunk none of whose shards are known
+        private void handleLocate() throws IOException {
+            String fileName = in.readUTF();
+            int numShards = in.readInt();
+            ArrayList<String> servers = new ArrayList<>();
+            HashMap<Integer, Integer> serverIds = new HashMap<>();
+            ArrayList<int[]> placements = new ArrayList<>();
+            FileRecord record = files.get(fileName);
+            for (int i = 0; i < Helper.readLimit; i++) {
+                boolean foundShard = false;
+                for (int j = 0; j < numShards; j++) {
+                    int[] ids = record == null ? new int[0] : record.holders(i, j);
+                    for (int k = 0; k < ids.length; k++) {
+                        ids[k] = serverIds.computeIfAbsent(ids[k], id -> {
+                            servers.add(machineIds.nameOf(id));
+                            return servers.size() - 1;
+                        });
+                    }
+                    foundShard |= ids.length > 0;
+                    placements.add(ids);
+                }
+                if (!foundShard) {
+                    placements.subList(placements.size() - numShards, placements.size()).clear();
+                    break;
                 }
             }
+            out.writeInt(placements.size() / numShards);
+            out.writeInt(servers.size());
+            for (String server : servers)
+                out.writeUTF(server);
+            for (int[] ids : placements) {
+                out.writeByte(ids.length);
+                for (int id : ids)
+                    out.writeShort(id);
+            }
         }
 
-        private String getRandomElement(HashSet<String> readMatches, Random rng) {
-            int randInt = rng.nextInt(readMatches.size());
-            int i = 0;
-            for (String machine : readMatches) {
-                if (i == randInt)
-                    return machine;
-                i++;
+        // picks and records servers for one shard, the servers holding it first, as one update of its replica set
+        private ArrayList<String> placeShard(String fileName) {
+            FileRecord.Shard shard = FileRecord.Shard.parse(fileName);
+            if (shard == null)
+                return new ArrayList<>();
+            ArrayList<ArrayList<String>> placed = new ArrayList<>(1);
+            files.compute(shard.file, (k, record) -> {
+                FileRecord next = record == null ? new FileRecord(k) : record;
+                placed.add(place(next, shard.chunk, shard.shard, new ArrayList<>()));
+                return next.isEmpty() ? null : next;
+            });
+            return placed.get(0);
+        }
+
+        // placeShard's change to a record, for a caller inside the compute on its file; every server claimed is
+        // added to claimed as the shard's name and the server's, before anything else can fail
+        private ArrayList<String> place(FileRecord record, int chunk, int shard, ArrayList<String[]> claimed) {
+            String name = record.name + "." + chunk + "." + shard;
+            HashSet<String> holders = new HashSet<>();
+            for (int id : record.holders(chunk, shard))
+                holders.add(machineIds.nameOf(id));
+            ArrayList<String> placement = new ArrayList<>(holders);
+            int replicationFactor = Integer.min(Helper.replicationFactor, chunkMachines.size());
+            ArrayList<ChunkMachine> picked = chunkMachines.claim(replicationFactor - holders.size(), holders);
+            for (ChunkMachine best : picked)
+                claimed.add(new String[] {name, best.name});
+            for (ChunkMachine best : picked) {
+                placement.add(best.name);
+                int id = machineIds.idOf(best.name);
+                if (record.add(chunk, shard, id))
+                    holdings.computeIfAbsent(id, i -> ConcurrentHashMap.newKeySet()).add(record);
+                digests.computeIfAbsent(best.name, h -> new InventoryDigest()).add(name);
             }
-            return "";
+            return placement;
         }
 
+        // applies a chunk server's report and answers with the kind it wants next: the whole inventory after a report
+        // went missing or from a server this controller doesn't know yet, a digest once the last check for drift is
+        // MajorHeartbeatSeconds old, and the buckets a digest disagreed on
         private void processHeartbeat(String host, DataInputStream in) throws IOException {
-            synchronized (chunkMachines) {
-                synchronized (chunksToMachines) {
-                    boolean isMajor = in.readBoolean();
-                    int numChunks = in.readInt();
-                    int numMsgChunks = in.readInt();
-                    int freeSpace = Helper.space - numChunks;
-                    HashSet<String> affirms = new HashSet<>();
-                    for (int i = 0; i < numMsgChunks; i++) {
-                        int chunkVersion = in.readInt(); //currently unused
-                        String chunkName = in.readUTF();
-                        if (chunksToMachines.containsKey(chunkName)) {
-                            chunksToMachines.get(chunkName).add(host);
-                        } else {
-                            HashSet<String> machineSet = new HashSet<>();
-                            machineSet.add(host);
-                            chunksToMachines.put(chunkName, machineSet);
-                        }
-                        if (isMajor) {
-                            affirms.add(chunkName);
-                        }
+            HeartbeatReport report = HeartbeatReport.read(in);
+            byte want = HeartbeatReport.DELTA;
+            int[] wantBuckets = null;
+            int freeSpace = Helper.space - report.numStored;
+            ChunkMachine machine = chunkMachines.addIfAbsent(host, freeSpace, report.numStored);
+            synchronized (machine) {  // one report per server at a time; other servers' go ahead in parallel
+                if (report.kind == HeartbeatReport.FULL
+                        || (machine.lastReport != 0 && report.sequence == machine.lastReport + 1)) {
+                    for (Map.Entry<String, Integer> entry : report.versions.entrySet()) {
+                        if (entry.getValue() == HeartbeatReport.REMOVED)
+                            removeHolder(entry.getKey(), host);
+                        else
+                            addHolder(entry.getKey(), host);
                     }
-                    if (isMajor) {  // process deletions
-                        for (String chunkName : chunksToMachines.keySet()) {
-                            // if global data says this host has it, but its latest major HB says it doesn't, delete
-                            if (chunksToMachines.get(chunkName).contains(host) && !affirms.contains(chunkName)) {
-                                chunksToMachines.get(chunkName).remove(host);
-                            }
-                        }
-                    }
-                    // update chunk machine metadata (primarily for serving write requests)
-                    boolean found = false;
-                    boolean needsSort = true;
-                    for (ChunkMachine cm : chunkMachines) {
-                        if (cm.name.equals(host)) {
-                            cm.numChunks = numChunks;
-                            if (cm.freeSpace == freeSpace)
-                                needsSort = false;
-                            cm.freeSpace = freeSpace;
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        //System.out.println("Adding new chunk machine at " + host);
-                        chunkMachines.add(new ChunkMachine(host, freeSpace, numChunks));
+                    machine.lastReport = report.sequence;
+                    InventoryDigest digest = digests.computeIfAbsent(host, k -> new InventoryDigest());
+                    // drop what this host was thought to hold but its report says it doesn't
+                    if (report.kind == HeartbeatReport.FULL) {
+                        reconcile(host, heldBy(host, null), report);
+                        machine.lastCheckedAt = System.nanoTime();
+                    } else if (report.kind == HeartbeatReport.BUCKETS) {
+                        reconcile(host, heldBy(host, report.buckets), report);
+                        machine.lastCheckedAt = System.nanoTime();
+                    } else if (report.kind == HeartbeatReport.DIGEST) {
+                        wantBuckets = digest.differing(report.digests);
+                        if (wantBuckets.length > InventoryDigest.BUCKETS / 2)  // cheaper to take it all
+                            want = HeartbeatReport.FULL;
+                        else if (wantBuckets.length > 0)
+                            want = HeartbeatReport.BUCKETS;
+                        else
+                            machine.lastCheckedAt = System.nanoTime();
                     }
-                    if (!needsSort)
-                        chunkMachines.sort(ChunkMachine::compareTo);
+                    if (want == HeartbeatReport.DELTA && System.nanoTime() - machine.lastCheckedAt
+                            > Helper.MajorHeartbeatSeconds * 1_000_000_000L)
+                        want = HeartbeatReport.DIGEST;
+                } else {
+                    want = HeartbeatReport.FULL;
                 }
+                // update chunk machine metadata (primarily for serving write requests)
+                chunkMachines.update(machine, freeSpace, report.numStored);
+            }
+            out.writeByte(want);
+            if (want == HeartbeatReport.BUCKETS)
+                HeartbeatReport.writeBuckets(out, wantBuckets);
+        }
+
+        private void reconcile(String host, ArrayList<String> believed, HeartbeatReport report) {
+            for (String chunk : believed) {
+                Integer version = report.versions.get(chunk);
+                if (version == null || version == HeartbeatReport.REMOVED)
+                    removeHolder(chunk, host);
             }
         }
     }
@@ -0,0 +1,225 @@
+package com.cs555.a1.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Which chunk servers hold each shard of one file, kept as ServerTable ids in one array rather than as a string key
+ * and a set of host names per shard. The holders of shard s of chunk c sit in slots (c * stride + s) * width onwards,
+ * packed from the front, each as its id plus one so an empty slot is 0. A shard costs width shorts, a few bytes, where
+ * the map it replaces spent hundreds. The array is laid out again, growing, when a chunk past its end, a higher shard
+ * number or one holder too many for a shard shows up; chunks grow by doubling so writing a file in order stays linear.
+ *
+ * The record also counts the shards each of its holders has, so the controller can tell when a server stops holding
+ * any of the file without looking through it.
+ *
+ * Changes take the write lock and are serialized by the caller besides. Reads don't lock: they read optimistically
+ * and only take the read lock if a change got in while they were at it.
+ */
+class FileRecord {
+    final String name;
+    private final StampedLock lock = new StampedLock();
+    private short[] slots = new short[0];
+    private int stride = 1;  // shards per chunk
+    private int width = 1;  // slots per shard
+    private int numHolders = 0;
+    private short[] servers = new short[0];  // the ids holding any shard, packed from the front
+    private int[] shardsHeld = new int[0];  // how many shards the server in the same position holds
+
+    FileRecord(String name) {
+        this.name = name;
+    }
+
+    // false if the server was already known to hold the shard
+    boolean add(int chunk, int shard, int server) {
+        long stamp = lock.writeLock();
+        try {
+            int chunks = numChunks();
+            if (chunk >= chunks || shard >= stride)
+                layOut(chunk >= chunks ? Integer.max(chunk + 1, chunks * 2) : chunks, Integer.max(stride, shard + 1),
+                        width);
+            int base = (chunk * stride + shard) * width;
+            int k = 0;
+            for (; k < width && slots[base + k] != 0; k++) {
+                if (slots[base + k] == (short) (server + 1))
+                    return false;
+            }
+            if (k == width) {
+                layOut(numChunks(), stride, width + 1);
+                base = (chunk * stride + shard) * width;
+            }
+            slots[base + k] = (short) (server + 1);
+            numHolders++;
+            count(server, 1);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // false if the server wasn't known to hold the shard
+    boolean remove(int chunk, int shard, int server) {
+        long stamp = lock.writeLock();
+        try {
+            if (chunk >= numChunks() || shard >= stride)
+                return false;
+            int base = (chunk * stride + shard) * width;
+            for (int k = 0; k < width && slots[base + k] != 0; k++) {
+                if (slots[base + k] == (short) (server + 1)) {
+                    int last = k;
+                    while (last + 1 < width && slots[base + last + 1] != 0)
+                        last++;
+                    slots[base + k] = slots[base + last];  // keep the holders packed
+                    slots[base + last] = 0;
+                    numHolders--;
+                    count(server, -1);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // the ids of the servers holding the shard
+    int[] holders(int chunk, int shard) {
+        long stamp = lock.tryOptimisticRead();
+        int[] ids = read(chunk, shard);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                ids = read(chunk, shard);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return ids;
+    }
+
+    // the names of every shard the server holds
+    ArrayList<String> heldBy(int server) {
+        ArrayList<String> held = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == (short) (server + 1)) {
+                    int shard = i / width;
+                    held.add(name + "." + shard / stride + "." + shard % stride);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return held;
+    }
+
+    // only meaningful to the thread making changes
+    boolean isEmpty() {
+        return numHolders == 0;
+    }
+
+    // whether the server holds any shard of the file; only meaningful to the thread making changes
+    boolean holds(int server) {
+        return indexOf(server) >= 0;
+    }
+
+    // a file is spread over a handful of servers, so a linear search beats anything keyed
+    private int indexOf(int server) {
+        for (int i = 0; i < servers.length && shardsHeld[i] > 0; i++) {
+            if (servers[i] == (short) server)
+                return i;
+        }
+        return -1;
+    }
+
+    private void count(int server, int delta) {
+        int i = indexOf(server);
+        if (i < 0) {
+            i = 0;
+            while (i < servers.length && shardsHeld[i] > 0)
+                i++;
+            if (i == servers.length) {
+                servers = Arrays.copyOf(servers, Integer.max(2, servers.length * 2));
+                shardsHeld = Arrays.copyOf(shardsHeld, servers.length);
+            }
+            servers[i] = (short) server;
+        }
+        shardsHeld[i] += delta;
+        if (shardsHeld[i] == 0) {  // keep the servers packed
+            int last = i;
+            while (last + 1 < servers.length && shardsHeld[last + 1] > 0)
+                last++;
+            servers[i] = servers[last];
+            shardsHeld[i] = shardsHeld[last];
+            shardsHeld[last] = 0;
+        }
+    }
+
+    // may run against a layout a change is replacing, so it stays in bounds and its result is checked afterwards
+    private int[] read(int chunk, int shard) {
+        short[] slots = this.slots;
+        int stride = this.stride;
+        int width = this.width;
+        long base = ((long) chunk * stride + shard) * width;
+        if (shard >= stride || base + width > slots.length)
+            return new int[0];
+        int numIds = 0;
+        while (numIds < width && slots[(int) base + numIds] != 0)
+            numIds++;
+        int[] ids = new int[numIds];
+        for (int k = 0; k < numIds; k++)
+            ids[k] = (slots[(int) base + k] & 0xffff) - 1;
+        return ids;
+    }
+
+    private int numChunks() {
+        return slots.length / (stride * width);
+    }
+
+    private void layOut(int chunks, int stride, int width) {
+        long size = (long) chunks * stride * width;
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Too many shards to track in " + name);
+        short[] next = new short[(int) size];
+        int oldChunks = numChunks();
+        for (int c = 0; c < oldChunks; c++) {
+            for (int s = 0; s < this.stride; s++)
+                System.arraycopy(slots, (c * this.stride + s) * this.width, next, (c * stride + s) * width,
+                        this.width);
+        }
+        slots = next;
+        this.stride = stride;
+        this.width = width;
+    }
+
+    /** A shard name, file.chunk.shard, taken apart; null from parse if the name isn't one. */
+    static class Shard {
+        final String file;
+        final int chunk;
+        final int shard;
+
+        private Shard(String file, int chunk, int shard) {
+            this.file = file;
+            this.chunk = chunk;
+            this.shard = shard;
+        }
+
+        static Shard parse(String name) {
+            int shardDot = name.lastIndexOf('.');
+            int chunkDot = shardDot <= 0 ? -1 : name.lastIndexOf('.', shardDot - 1);
+            if (chunkDot <= 0)
+                return null;
+            try {
+                int chunk = Integer.parseInt(name.substring(chunkDot + 1, shardDot));
+                int shard = Integer.parseInt(name.substring(shardDot + 1));
+                if (chunk < 0 || shard < 0 || shard > Byte.MAX_VALUE)  // shards go over the wire as a byte
+                    return null;
+                return new Shard(name.substring(0, chunkDot), chunk, shard);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
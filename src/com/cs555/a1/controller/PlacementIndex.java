@@ -0,0 +1,113 @@
+package com.cs555.a1.controller;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The chunk servers shards are placed on, indexed by name and by free space: a map for lookups and a tree ordered
+ * roomiest first, ties by name. Changing one server's space is O(log n) and picking the k roomiest is O(k log n),
+ * where the list this replaces was scanned for a name and re-sorted on nearly every request. Every method holds the
+ * index's monitor only for its own few steps, so placements for different chunks barely contend.
+ */
+class PlacementIndex {
+    private static final Comparator<Controller.ChunkMachine> ROOMIEST_FIRST =
+            Comparator.<Controller.ChunkMachine>comparingInt(m -> m.freeSpace).reversed()
+                    .thenComparing(m -> m.name);
+
+    private final HashMap<String, Controller.ChunkMachine> byName = new HashMap<>();
+    private final TreeSet<Controller.ChunkMachine> bySpace = new TreeSet<>(ROOMIEST_FIRST);
+    private long totalFreeSpace = 0;  // over servers with any room left
+
+    synchronized Controller.ChunkMachine get(String name) {
+        return byName.get(name);
+    }
+
+    // the named server, added with the given space if it isn't known yet
+    synchronized Controller.ChunkMachine addIfAbsent(String name, int freeSpace, int numChunks) {
+        Controller.ChunkMachine machine = byName.get(name);
+        if (machine == null) {
+            machine = new Controller.ChunkMachine(name, freeSpace, numChunks);
+            byName.put(name, machine);
+            bySpace.add(machine);
+            totalFreeSpace += Integer.max(machine.freeSpace, 0);
+        }
+        return machine;
+    }
+
+    synchronized Controller.ChunkMachine remove(String name) {
+        Controller.ChunkMachine machine = byName.remove(name);
+        if (machine != null) {
+            bySpace.remove(machine);
+            totalFreeSpace -= Integer.max(machine.freeSpace, 0);
+        }
+        return machine;
+    }
+
+    // its position in the tree depends on freeSpace, so it is taken out first; ignored once the server is removed
+    synchronized void update(Controller.ChunkMachine machine, int freeSpace, int numChunks) {
+        if (byName.get(machine.name) != machine)
+            return;
+        bySpace.remove(machine);
+        totalFreeSpace -= Integer.max(machine.freeSpace, 0);
+        machine.freeSpace = freeSpace;
+        machine.numChunks = numChunks;
+        bySpace.add(machine);
+        totalFreeSpace += Integer.max(machine.freeSpace, 0);
+    }
+
+    // a shard placed on (chunks > 0) or dropped from (chunks < 0) the named server, if it is known
+    synchronized void adjust(String name, int chunks) {
+        Controller.ChunkMachine machine = byName.get(name);
+        if (machine != null)
+            update(machine, machine.freeSpace - chunks, machine.numChunks + chunks);
+    }
+
+    // up to count servers with the most room, skipping those named in excluding
+    synchronized ArrayList<Controller.ChunkMachine> roomiest(int count, Set<String> excluding) {
+        ArrayList<Controller.ChunkMachine> picked = new ArrayList<>();
+        for (Controller.ChunkMachine machine : bySpace) {
+            if (picked.size() >= count)
+                break;
+            if (!excluding.contains(machine.name))
+                picked.add(machine);
+        }
+        return picked;
+    }
+
+    // picks up to count servers as roomiest does and charges each for one more shard, in one step
+    synchronized ArrayList<Controller.ChunkMachine> claim(int count, Set<String> excluding) {
+        ArrayList<Controller.ChunkMachine> picked = roomiest(count, excluding);
+        for (Controller.ChunkMachine machine : picked)
+            update(machine, machine.freeSpace - 1, machine.numChunks + 1);
+        return picked;
+    }
+
+    synchronized Controller.ChunkMachine roomiest() {
+        return bySpace.isEmpty() ? null : bySpace.first();
+    }
+
+    synchronized long totalFreeSpace() {
+        return totalFreeSpace;
+    }
+
+    synchronized int size() {
+        return byName.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    // a copy, so callers can add and remove servers while going through it
+    synchronized ArrayList<Controller.ChunkMachine> all() {
+        return new ArrayList<>(bySpace);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bySpace.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.cs555.a1.controller;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chunk server names interned to small ids, so the controller's metadata can name a server in two bytes instead of
+ * holding its string once per shard. Ids are handed out in order and never reused: a server that fails and comes back
+ * keeps the id it had. Looking an id or a name up takes no lock.
+ */
+class ServerTable {
+    static final int MAX_SERVERS = 0xfffe;  // ids are stored as unsigned shorts, plus one so that 0 means none
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];  // written before the id is published in ids
+
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : intern(name);
+    }
+
+    // the server's id, or -1 if it has never been seen
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    private synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        int next = ids.size();
+        if (next >= MAX_SERVERS)
+            throw new IllegalStateException("Too many chunk servers to track " + name);
+        String[] current = names;
+        if (next == current.length)
+            current = Arrays.copyOf(current, current.length * 2);
+        current[next] = name;
+        names = current;
+        ids.put(name, next);
+        return next;
+    }
+}